@@ -0,0 +1,119 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator of fixed size direct ByteBuffers.
+ * <p>
+ * The buffers are carved from large direct chunks so that connecting clients do not each pay
+ * for an allocation of native memory. A released buffer goes into the free list of the thread
+ * releasing it, and is handed out again by this thread without any synchronization. A new slice
+ * of a chunk is only taken when the free list of the current thread is empty (a miss).
+ * <p>
+ * Buffers are never given back to the system: the pool grows up to the peak number of buffers
+ * in use.
+ */
+public class BufferPool {
+    private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private final int bufferSize;
+    private final int chunkSize;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>> freeLists = ThreadLocal.withInitial(ArrayDeque::new);
+    private final Object lock = new Object();
+    private ByteBuffer chunk; // guarded by lock
+
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong carved = new AtomicLong();
+    private final AtomicLong inUse = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public BufferPool(int bufferSize) {
+        this(bufferSize, Math.max(bufferSize, DEFAULT_CHUNK_SIZE));
+    }
+
+    public BufferPool(int bufferSize, int chunkSize) {
+        if (bufferSize <= 0 || chunkSize < bufferSize) {
+            throw new IllegalArgumentException("invalid sizes " + bufferSize + "/" + chunkSize);
+        }
+        this.bufferSize = bufferSize;
+        this.chunkSize = chunkSize - chunkSize % bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer of bufferSize bytes.
+     *
+     * @return a buffer in write-mode
+     */
+    public ByteBuffer acquire() {
+        inUse.incrementAndGet();
+        var buffer = freeLists.get().poll();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer.clear();
+        }
+        misses.incrementAndGet();
+        return carve();
+    }
+
+    /**
+     * Gives back a buffer obtained by acquire. The buffer must not be used afterwards.
+     *
+     * @param buffer the buffer to release
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            throw new IllegalArgumentException("buffer does not come from this pool");
+        }
+        inUse.decrementAndGet();
+        freeLists.get().push(buffer.clear());
+    }
+
+    private ByteBuffer carve() {
+        synchronized (lock) {
+            if (chunk == null || chunk.remaining() < bufferSize) {
+                chunk = ByteBuffer.allocateDirect(chunkSize);
+                chunks.incrementAndGet();
+            }
+            var buffer = chunk.slice(chunk.position(), bufferSize);
+            chunk.position(chunk.position() + bufferSize);
+            carved.incrementAndGet();
+            return buffer;
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public long inUse() {
+        return inUse.get();
+    }
+
+    public long carved() {
+        return carved.get();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of bytes of native memory held by the pool
+     */
+    public long reservedBytes() {
+        return chunks.get() * chunkSize;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[" + inUse() + "/" + carved() + " buffers of " + bufferSize + " bytes in use, "
+                + chunks.get() + " chunks, " + hits() + " hits, " + misses() + " misses]";
+    }
+}
@@ -0,0 +1,106 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative long values with a bounded relative error, cheap enough to be
+ * fed on every iteration of a selector loop.
+ * <p>
+ * Values under 32 have their own bucket. Above, each power of two is split into 16 buckets,
+ * so a percentile is reported with an error under 1/16 of its value. Recording a value is an
+ * array increment: nothing is allocated and nothing is sorted.
+ * <p>
+ * This class is not thread-safe, it is meant to be used by the thread of a single loop.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int NB_BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    private final String unit;
+    private final long[] counts = new long[NB_BUCKETS];
+    private long count;
+    private long max;
+
+    /**
+     * @param unit the unit of the values, only used by toString
+     */
+    public Histogram(String unit) {
+        this.unit = unit;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS * 2) {
+            return (int) value;
+        }
+        var shift = Long.SIZE - Long.numberOfLeadingZeros(value) - 1 - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS * 2) {
+            return bucket;
+        }
+        var shift = bucket / SUB_BUCKETS - 1;
+        var bits = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS);
+        return ((bits + 1) << shift) - 1;
+    }
+
+    /**
+     * @param value the value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucket(value)]++;
+        count++;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Returns an upper bound of the value under which the given fraction of the recorded values are.
+     *
+     * @param fraction a number between 0 and 1, for instance 0.99 for the 99th percentile
+     * @return the percentile, never greater than max, or 0 if nothing was recorded
+     */
+    public long percentile(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1");
+        }
+        var rank = Math.max(1, (long) Math.ceil(fraction * count));
+        var seen = 0L;
+        for (int i = 0; i < NB_BUCKETS && seen < count; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return 0;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "p50=" + percentile(0.5) + unit
+                + " p99=" + percentile(0.99) + unit
+                + " p999=" + percentile(0.999) + unit
+                + " max=" + max + unit
+                + " (" + count + " values)";
+    }
+}
@@ -0,0 +1,122 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Buffer of a connection that is only held while bytes are in flight.
+ * <p>
+ * The buffer is taken from a pool by acquire and given back by release, so an idle connection
+ * holds no buffer at all. If release is called while the buffer still contains bytes, typically
+ * the beginning of a frame not received entirely, only those bytes are kept, in an array of their
+ * exact size, and put back at the beginning of the buffer by the next acquire.
+ * <p>
+ * The bytes held, a whole buffer while leased and the remainder otherwise, can be charged to a
+ * {@link MemoryBudget}.
+ * <p>
+ * The buffer is in write-mode between acquire and release. This class is not thread-safe.
+ */
+public class LeasedBuffer {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final BufferPool pool;
+    private final MemoryBudget budget; // null when the bytes held are not accounted
+    private ByteBuffer buffer; // null when not leased
+    private byte[] remainder = EMPTY; // content of the buffer when it was released
+
+    public LeasedBuffer(BufferPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * @param pool   the pool of the buffers
+     * @param budget the budget charged with the bytes held, or null
+     */
+    public LeasedBuffer(BufferPool pool, MemoryBudget budget) {
+        this.pool = Objects.requireNonNull(pool);
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the buffer, taking it from the pool with the bytes kept by the last release if it
+     * is not leased.
+     *
+     * @return the buffer in write-mode
+     */
+    public ByteBuffer acquire() {
+        if (buffer == null) {
+            var held = footprint();
+            buffer = pool.acquire().put(remainder);
+            remainder = EMPTY;
+            account(held);
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives back the buffer to the pool, keeping a copy of its content if it is not empty.
+     * The buffer returned by acquire must not be used afterwards.
+     */
+    public void release() {
+        if (buffer == null) {
+            return;
+        }
+        var held = footprint();
+        if (buffer.position() != 0) {
+            remainder = new byte[buffer.position()];
+            buffer.flip().get(remainder);
+        }
+        pool.release(buffer);
+        buffer = null;
+        account(held);
+    }
+
+    /**
+     * Gives back the buffer to the pool and forgets its content, when the connection is closed.
+     */
+    public void discard() {
+        var held = footprint();
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        remainder = EMPTY;
+        account(held);
+    }
+
+    private void account(long held) {
+        if (budget != null) {
+            budget.charge(footprint() - held);
+        }
+    }
+
+    /**
+     * @return the number of bytes held: the size of the buffer while leased, the size of the
+     * remainder otherwise
+     */
+    public int footprint() {
+        return buffer == null ? remainder.length : pool.bufferSize();
+    }
+
+    public boolean isLeased() {
+        return buffer != null;
+    }
+
+    /**
+     * @return the number of bytes in the buffer, or kept by the last release
+     */
+    public int size() {
+        return buffer == null ? remainder.length : buffer.position();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return true if bytes can still be added to the buffer
+     */
+    public boolean hasRemaining() {
+        return size() < pool.bufferSize();
+    }
+}
@@ -0,0 +1,111 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide budget of the bytes held for the connections, in buffers and in queued frames.
+ * <p>
+ * Each connection charges the bytes it takes and credits them back when it gives them up, so
+ * that the usage of the whole server is known at any time. As the usage grows, the server is
+ * expected to react in three steps:
+ * <ul>
+ *     <li>over 70% of the limit, it stops accepting new connections,</li>
+ *     <li>over 85%, it sheds the largest queues,</li>
+ *     <li>at the limit, it refuses new frames.</li>
+ * </ul>
+ * Charging never fails: the budget only tells the level of pressure, the server decides what
+ * to give up. charge and credit can be called from any thread.
+ */
+public class MemoryBudget {
+    public enum Pressure {
+        NONE, NO_ACCEPT, SHED, REFUSE
+    }
+
+    private static final int NO_ACCEPT_PERCENT = 70;
+    private static final int SHED_PERCENT = 85;
+
+    private final long limit;
+    private final long noAcceptLimit;
+    private final long shedLimit;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+
+    /**
+     * @param limit the number of bytes at which new frames are refused
+     */
+    public MemoryBudget(long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        this.limit = limit;
+        this.noAcceptLimit = limit / 100 * NO_ACCEPT_PERCENT;
+        this.shedLimit = limit / 100 * SHED_PERCENT;
+    }
+
+    /**
+     * A budget that is never exceeded, only used to account.
+     *
+     * @return a budget of Long.MAX_VALUE bytes
+     */
+    public static MemoryBudget unlimited() {
+        return new MemoryBudget(Long.MAX_VALUE);
+    }
+
+    public void charge(long bytes) {
+        var usage = used.addAndGet(bytes);
+        if (usage > peak.get()) {
+            peak.accumulateAndGet(usage, Math::max);
+        }
+    }
+
+    public void credit(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    public long used() {
+        return used.get();
+    }
+
+    public long peak() {
+        return peak.get();
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    public Pressure pressure() {
+        var usage = used.get();
+        if (usage >= limit) {
+            return Pressure.REFUSE;
+        }
+        if (usage >= shedLimit) {
+            return Pressure.SHED;
+        }
+        if (usage >= noAcceptLimit) {
+            return Pressure.NO_ACCEPT;
+        }
+        return Pressure.NONE;
+    }
+
+    public boolean acceptsConnections() {
+        return used.get() < noAcceptLimit;
+    }
+
+    public boolean mustShed() {
+        return used.get() >= shedLimit;
+    }
+
+    public boolean refusesFrames() {
+        return used.get() >= limit;
+    }
+
+    @Override
+    public String toString() {
+        var usage = used();
+        if (limit == Long.MAX_VALUE) {
+            return usage + " bytes used, peak " + peak();
+        }
+        return usage + "/" + limit + " bytes used (" + usage * 100 / limit + "%), peak " + peak() + ", " + pressure();
+    }
+}
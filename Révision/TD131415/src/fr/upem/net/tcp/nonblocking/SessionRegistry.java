@@ -0,0 +1,86 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Dense array of the live sessions of a server, used to broadcast without walking the keys
+ * of the selector.
+ * <p>
+ * Each session remembers its slot, so that add and remove are O(1): on removal the last session
+ * is moved into the freed slot. The sessions are therefore not kept in any particular order.
+ * <p>
+ * This class is not thread-safe, a registry belongs to one event loop.
+ *
+ * @param <S> the type of the sessions
+ */
+public class SessionRegistry<S extends SessionRegistry.Session> {
+    /**
+     * A session that can be stored in a registry.
+     */
+    public interface Session {
+        /**
+         * @return the slot given by setRegistryIndex, or -1 if the session is not registered
+         */
+        int registryIndex();
+
+        void setRegistryIndex(int index);
+    }
+
+    private Session[] sessions = new Session[16];
+    private int size = 0;
+
+    public void add(S session) {
+        if (session.registryIndex() != -1) {
+            throw new IllegalStateException("session already registered");
+        }
+        if (size == sessions.length) {
+            sessions = Arrays.copyOf(sessions, size * 2);
+        }
+        session.setRegistryIndex(size);
+        sessions[size++] = session;
+    }
+
+    /**
+     * Remove a session. Removing a session that is not registered does nothing.
+     *
+     * @param session the session to remove
+     */
+    public void remove(S session) {
+        var index = session.registryIndex();
+        if (index == -1) {
+            return;
+        }
+        var last = sessions[--size];
+        sessions[index] = last;
+        last.setRegistryIndex(index);
+        sessions[size] = null;
+        session.setRegistryIndex(-1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public S get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return (S) sessions[index];
+    }
+
+    /**
+     * Apply action to all the sessions. The action may remove the session it is given, but
+     * must not add or remove any other session.
+     *
+     * @param action the action to apply
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super S> action) {
+        // walk backward: removing the current session moves into its slot a session already visited
+        for (var i = size - 1; i >= 0; i--) {
+            action.accept((S) sessions[i]);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.channels.Selector;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queue of tasks posted by any thread and run by the thread of a selector loop.
+ * <p>
+ * Posting is lock-free: a producer links its node with a single atomic exchange, so many
+ * threads can post at a high rate without contending on a lock, and nothing is ever rejected.
+ * The consumer runs the tasks in the order they were posted.
+ * <p>
+ * The selector is woken up at most once per call to runAll: the first producer that finds no
+ * wakeup pending calls {@link Selector#wakeup()}, the following ones see that the wakeup is
+ * already pending and do nothing.
+ */
+public class TaskQueue {
+    private static final class Node {
+        private Runnable task;
+        private volatile Node next;
+
+        private Node(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final Selector selector;
+    private final AtomicReference<Node> last;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private Node first; // the node before the next task to run, only used by the consumer
+
+    public TaskQueue(Selector selector) {
+        this.selector = Objects.requireNonNull(selector);
+        first = new Node(null);
+        last = new AtomicReference<>(first);
+    }
+
+    /**
+     * Add a task at the end of the queue and wake up the selector if no wakeup is pending.
+     * Can be called from any thread.
+     *
+     * @param task the task to run on the thread of the loop
+     */
+    public void post(Runnable task) {
+        var node = new Node(Objects.requireNonNull(task));
+        last.getAndSet(node).next = node;
+        // the node is linked before the flag is read, so runAll sees it or a wakeup is sent
+        if (!wakeupPending.get() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Run the tasks posted so far, in order. Must only be called by the thread of the loop.
+     * <p>
+     * A task that throws an exception is lost, the tasks after it stay in the queue.
+     *
+     * @return the number of tasks run
+     */
+    public int runAll() {
+        wakeupPending.set(false);
+        var count = 0;
+        Node next;
+        while ((next = first.next) != null) {
+            var task = next.task;
+            next.task = null;
+            first = next;
+            count++;
+            task.run();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,156 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.PrintStream;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event trace of the selector loops, replacing the debug prints.
+ * <p>
+ * When the trace is disabled, which is the default, record only reads a volatile boolean.
+ * When it is enabled, an event is stored with its time, its thread and two numeric arguments in
+ * a ring preallocated at class loading: nothing is formatted nor allocated until dump is called.
+ * The ring keeps the last CAPACITY events.
+ * <p>
+ * The trace can be enabled at startup with -Dfr.upem.net.trace=true, or at runtime with enable.
+ */
+public final class Trace {
+    public enum Event {
+        /** arg1: select timeout in ms (-1 for none) */
+        SELECT,
+        /** arg1: number of keys processed */
+        SELECTED,
+        /** arg1: ready ops, arg2: interest ops */
+        KEY,
+        /** arg1: id of the connection */
+        ACCEPT,
+        /** arg1: id of the connection, arg2: bytes read */
+        READ,
+        /** arg1: id of the connection, arg2: bytes written */
+        WRITE,
+        /** arg1: id of the connection */
+        CLOSE,
+        /** arg1: id of the connection, arg2: size of the message */
+        MESSAGE
+    }
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    private static final Event[] EVENTS = Event.values();
+
+    private static final long[] times = new long[CAPACITY];
+    private static final long[] threads = new long[CAPACITY];
+    private static final byte[] events = new byte[CAPACITY];
+    private static final long[] args1 = new long[CAPACITY];
+    private static final long[] args2 = new long[CAPACITY];
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static volatile boolean enabled = Boolean.getBoolean("fr.upem.net.trace");
+
+    private Trace() {
+        throw new AssertionError();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static void record(Event event, long arg1, long arg2) {
+        if (!enabled) {
+            return;
+        }
+        var index = (int) (sequence.getAndIncrement() & MASK);
+        times[index] = System.nanoTime();
+        threads[index] = Thread.currentThread().getId();
+        args1[index] = arg1;
+        args2[index] = arg2;
+        events[index] = (byte) (event.ordinal() + 1);
+    }
+
+    public static void record(Event event, long arg1) {
+        record(event, arg1, 0);
+    }
+
+    /**
+     * Record an event about a connection, identified by the identity hash code of connection.
+     *
+     * @param event      the event
+     * @param connection the channel (or any object) identifying the connection
+     * @param arg        the second argument of the event
+     */
+    public static void record(Event event, Object connection, long arg) {
+        if (!enabled) {
+            return;
+        }
+        record(event, System.identityHashCode(connection), arg);
+    }
+
+    /**
+     * Record the ready and interest operations of a selected key.
+     *
+     * @param key the selected key
+     */
+    public static void recordKey(SelectionKey key) {
+        if (!enabled || !key.isValid()) {
+            return;
+        }
+        try {
+            record(Event.KEY, key.readyOps(), key.interestOps());
+        } catch (CancelledKeyException e) {
+            // cancelled by another thread since isValid
+        }
+    }
+
+    /**
+     * Print the events of the ring, oldest first. Events recorded during the dump may be
+     * printed partially.
+     *
+     * @param out the stream to print to
+     */
+    public static void dump(PrintStream out) {
+        var end = sequence.get();
+        var start = Math.max(0, end - CAPACITY);
+        out.println("--- trace: " + (end - start) + " events ---");
+        for (var seq = start; seq < end; seq++) {
+            var index = (int) (seq & MASK);
+            if (events[index] == 0) {
+                continue;
+            }
+            var event = EVENTS[events[index] - 1];
+            out.println(times[index] / 1_000 + "us [" + threads[index] + "] " + event + " " + format(event, args1[index], args2[index]));
+        }
+    }
+
+    private static String format(Event event, long arg1, long arg2) {
+        switch (event) {
+            case KEY:
+                return "ready=" + ops(arg1) + " interest=" + ops(arg2);
+            case SELECT:
+            case SELECTED:
+                return Long.toString(arg1);
+            case ACCEPT:
+            case CLOSE:
+                return "#" + Long.toHexString(arg1);
+            default:
+                return "#" + Long.toHexString(arg1) + " " + arg2;
+        }
+    }
+
+    private static String ops(long ops) {
+        var sb = new StringBuilder();
+        if ((ops & SelectionKey.OP_ACCEPT) != 0) sb.append("ACCEPT|");
+        if ((ops & SelectionKey.OP_CONNECT) != 0) sb.append("CONNECT|");
+        if ((ops & SelectionKey.OP_READ) != 0) sb.append("READ|");
+        if ((ops & SelectionKey.OP_WRITE) != 0) sb.append("WRITE|");
+        return sb.length() == 0 ? "0" : sb.substring(0, sb.length() - 1);
+    }
+}
@@ -1,5 +1,7 @@
 package fr.upem.net.tcp.nonblocking.chat;
 
+import fr.upem.net.tcp.nonblocking.Trace;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
@@ -38,7 +40,6 @@ public class Context {
 
         while (bufferIn.remaining() >= Integer.BYTES) {
             var mgs = bufferIn.getInt();
-            System.out.println("==> Getting ::::: "+mgs);
             server.broadcast(mgs);
         }
 
@@ -113,7 +114,9 @@ public class Context {
      */
     public void doRead() throws IOException {
         // TODO
-        if (sc.read(bufferIn) == -1) {
+        var read = sc.read(bufferIn);
+        Trace.record(Trace.Event.READ, sc, read);
+        if (read == -1) {
             System.err.println("Connection closed by " + sc.getRemoteAddress());
             closed = true;
         }
@@ -134,9 +137,9 @@ public class Context {
     public void doWrite() throws IOException {
         // TODO
         bufferOut.flip();
-        System.out.println("<== Sending .... ");
 
-        sc.write(bufferOut);
+        var written = sc.write(bufferOut);
+        Trace.record(Trace.Event.WRITE, sc, written);
 
         bufferOut.compact();
 
@@ -0,0 +1,16 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import java.util.Objects;
+
+/**
+ * A message sent to a single user.
+ *
+ * @param recipient the username of the user the message is for
+ * @param message   the message, delivered to the recipient as an ordinary message
+ */
+public record DirectMessage(String recipient, Message message) {
+    public DirectMessage {
+        Objects.requireNonNull(recipient);
+        Objects.requireNonNull(message);
+    }
+}
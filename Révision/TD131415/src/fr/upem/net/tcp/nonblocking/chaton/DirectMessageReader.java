@@ -0,0 +1,122 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of the frames of direct messages.
+ * <p>
+ * A direct message frame starts with the int MARKER, which can not be the length of a
+ * username, followed by the recipient, the username and the text, each one as an int length
+ * and the UTF-8 bytes. An ordinary message frame can thus be told from a direct message frame
+ * by its first int.
+ * <p>
+ * The convention is that the buffer given to process is in write-mode before and after the call.
+ */
+public class DirectMessageReader implements Reader<DirectMessage> {
+    private enum State {
+        MARKER, SIZE, STRING, DONE, ERROR
+    }
+
+    public static final int MARKER = -1;
+    public static final int MAX_SIZE = 1_024; // of each string, in bytes
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private State state = State.MARKER;
+    private final ByteBuffer size = ByteBuffer.allocate(Integer.BYTES);
+    private ByteBuffer string;
+    private final String[] strings = new String[3]; // recipient, username and text
+    private int index = 0;
+    private DirectMessage value;
+
+    /**
+     * @param buffer a buffer in write-mode
+     * @return true if the first int of the content of buffer is MARKER
+     */
+    public static boolean startsDirectMessage(ByteBuffer buffer) {
+        return buffer.position() >= Integer.BYTES && buffer.getInt(0) == MARKER;
+    }
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (state == State.DONE || state == State.ERROR) {
+            throw new IllegalStateException();
+        }
+        buffer.flip();
+        try {
+            while (state != State.DONE) {
+                switch (state) {
+                    case MARKER, SIZE -> {
+                        if (!fill(buffer, size)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        var read = size.flip().getInt();
+                        size.clear();
+                        if (state == State.MARKER) {
+                            if (read != MARKER) {
+                                state = State.ERROR;
+                                return ProcessStatus.ERROR;
+                            }
+                            state = State.SIZE;
+                        } else {
+                            if (read < 0 || read > MAX_SIZE) {
+                                state = State.ERROR;
+                                return ProcessStatus.ERROR;
+                            }
+                            string = ByteBuffer.allocate(read);
+                            state = State.STRING;
+                        }
+                    }
+                    case STRING -> {
+                        if (!fill(buffer, string)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        strings[index++] = CHARSET.decode(string.flip()).toString();
+                        string = null;
+                        state = index == strings.length ? State.DONE : State.SIZE;
+                    }
+                    default -> throw new AssertionError();
+                }
+            }
+            value = new DirectMessage(strings[0], new Message(strings[1], strings[2]));
+            return ProcessStatus.DONE;
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Move to target as many bytes of source as possible.
+     *
+     * @return true if target is full
+     */
+    private static boolean fill(ByteBuffer source, ByteBuffer target) {
+        if (source.remaining() <= target.remaining()) {
+            target.put(source);
+        } else {
+            var limit = source.limit();
+            source.limit(source.position() + target.remaining());
+            target.put(source);
+            source.limit(limit);
+        }
+        return !target.hasRemaining();
+    }
+
+    @Override
+    public DirectMessage get() {
+        if (state != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        state = State.MARKER;
+        size.clear();
+        string = null;
+        index = 0;
+        value = null;
+    }
+}
@@ -0,0 +1,39 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class DirectMessageTest {
+
+    @Test
+    public void simple() {
+        var buffer = ByteBuffer.allocate(1024);
+        buffer.putInt(DirectMessageReader.MARKER);
+        for (var string : new String[]{"Alice", "Chorche", "Zebiiii!"}) {
+            var bytes = StandardCharsets.UTF_8.encode(string);
+            buffer.putInt(bytes.remaining()).put(bytes);
+        }
+
+        assertTrue(DirectMessageReader.startsDirectMessage(buffer));
+        var reader = new DirectMessageReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(buffer));
+        assertEquals(new DirectMessage("Alice", new Message("Chorche", "Zebiiii!")), reader.get());
+        assertEquals(0, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+    }
+
+    @Test
+    public void ordinaryMessage() {
+        var buffer = ByteBuffer.allocate(1024);
+        buffer.putInt(7);
+        assertFalse(DirectMessageReader.startsDirectMessage(buffer));
+        assertEquals(Reader.ProcessStatus.ERROR, new DirectMessageReader().process(buffer));
+    }
+}
@@ -0,0 +1,19 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+/**
+ * What the server does when the queue of a client would go over its high watermark.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the oldest queued frames, never the one being written, until the new frame fits.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new frame.
+     */
+    DROP_NEWEST,
+    /**
+     * Close the connection of the slow client.
+     */
+    DISCONNECT
+}
@@ -1,5 +1,7 @@
 package fr.upem.net.tcp.nonblocking.chaton.client;
 
+import fr.upem.net.tcp.nonblocking.BufferPool;
+import fr.upem.net.tcp.nonblocking.LeasedBuffer;
 import fr.upem.net.tcp.nonblocking.chaton.Message;
 import fr.upem.net.tcp.nonblocking.chaton.MessageReader;
 import fr.upem.net.tcp.nonblocking.chaton.Reader;
@@ -18,12 +20,14 @@ import java.util.ArrayDeque;
 public class Context {
     static private final int BUFFER_SIZE = 10_000;
     private final static Charset CHARSET = StandardCharsets.UTF_8;
+    private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE, 2 * BUFFER_SIZE); // one connection, in and out
 
 
     private final SelectionKey key;
     private final SocketChannel sc;
-    private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
-    private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
+    private final LeasedBuffer in = new LeasedBuffer(BUFFER_POOL); // bufferIn, only leased while bytes are in flight
+    private final LeasedBuffer out = new LeasedBuffer(BUFFER_POOL); // bufferOut, only leased while bytes are in flight
+    private MessageReader reader; // null between two frames
     public final ArrayDeque<Message> queue = new ArrayDeque<>();
     private boolean closed = false;
 
@@ -33,19 +37,27 @@ public class Context {
     }
 
     /**
-     * Process the content of bufferIn
+     * Process the content of bufferIn, then give it back to the pool with only the bytes
+     * of an incomplete frame, if any
      * <p>
      * The convention is that bufferIn is in write-mode before the call to process
      * and after the call
      */
     private void processIn() {
+        var bufferIn = in.acquire();
         for (; ; ) {
-            Reader<Message> reader = new MessageReader();
+            if (reader == null) {
+                if (bufferIn.position() == 0) {
+                    in.release();
+                    return;
+                }
+                reader = new MessageReader();
+            }
             Reader.ProcessStatus status = reader.process(bufferIn);
             switch (status) {
                 case DONE:
                     var message = reader.get();
-                    reader.reset();
+                    reader = null;
 
                     var dtf = DateTimeFormatter.ofPattern("HH:mm");
                     System.out.println(dtf.format(LocalDateTime.now()) +" from "+ message.username()+" ::: " + message.text());
@@ -53,6 +65,7 @@ public class Context {
 
                     break;
                 case REFILL:
+                    in.release();
                     return;
                 case ERROR:
                     silentlyClose();
@@ -78,9 +91,14 @@ public class Context {
     }
 
     /**
-     * Try to fill bufferOut from the message queue
+     * Try to fill bufferOut from the message queue, and give it back to the pool if nothing
+     * could be put in it
      */
     private void processOut() {
+        if (queue.isEmpty()) {
+            return;
+        }
+        var bufferOut = out.acquire();
         while (!queue.isEmpty() && bufferOut.hasRemaining()) {
             var message = queue.peek();
 
@@ -96,7 +114,7 @@ public class Context {
 
             ByteBuffer mgsBuffer = ByteBuffer.allocate(userBuffer.capacity() + textBuffer.capacity() + Integer.BYTES * 2);
             if (mgsBuffer.capacity() >= 1024) {
-                return;
+                break;
             }
 
             mgsBuffer
@@ -110,9 +128,12 @@ public class Context {
                 bufferOut.put(mgsBuffer);
                 queue.pop();
             } else {
-                return;
+                break;
             }
         }
+        if (out.isEmpty()) { // nothing fitted, the buffer must not stay leased
+            out.release();
+        }
 
     }
 
@@ -128,10 +149,10 @@ public class Context {
     private void updateInterestOps() {
         // TODO
         int interestOps = 0;
-        if (!closed && bufferIn.hasRemaining()) {
+        if (!closed && in.hasRemaining()) {
             interestOps |= SelectionKey.OP_READ;
         }
-        if (bufferOut.position() != 0) {
+        if (!out.isEmpty()) {
             interestOps |= SelectionKey.OP_WRITE;
         }
 
@@ -148,6 +169,8 @@ public class Context {
         } catch (IOException e) {
             // ignore exception
         }
+        in.discard();
+        out.discard();
     }
 
     /**
@@ -160,9 +183,10 @@ public class Context {
      */
     public void doRead() throws IOException {
         // TODO
-        var t = sc.read(bufferIn);
+        var t = sc.read(in.acquire());
 
         if (t == 0) {
+            in.release();
             return;
         }
         if (t == -1) {
@@ -186,6 +210,7 @@ public class Context {
 
     public void doWrite() throws IOException {
 
+        var bufferOut = out.acquire();
         bufferOut.flip();
 
         sc.write(bufferOut);
@@ -198,6 +223,9 @@ public class Context {
         bufferOut.compact();
 
         processOut();
+        if (out.isEmpty()) {
+            out.release();
+        }
         updateInterestOps();
     }
 
@@ -1,5 +1,7 @@
 package fr.upem.net.tcp.nonblocking.chaton.server;
 
+import fr.upem.net.tcp.nonblocking.BufferPool;
+import fr.upem.net.tcp.nonblocking.Trace;
 import fr.upem.net.tcp.nonblocking.chaton.Message;
 import fr.upem.net.tcp.nonblocking.chaton.MessageReader;
 import fr.upem.net.tcp.nonblocking.chaton.Reader;
@@ -16,14 +18,16 @@ public class Context {
 
     private static final int BUFFER_SIZE = 1_024;
     private final static Charset CHARSET = StandardCharsets.UTF_8;
+    private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE);
     private final SelectionKey key;
     private final SocketChannel sc;
-    private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
-    private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bufferIn = BUFFER_POOL.acquire();
+    private final ByteBuffer bufferOut = BUFFER_POOL.acquire();
     private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
     private final ServerChaton server; // we could also have Context as an instance class, which would naturally
     // give access to ServerChatInt.this
     private boolean closed = false;
+    private boolean released = false;
 
     private String text;
     private String username;
@@ -78,6 +82,9 @@ public class Context {
      */
     public void queueMessage(Message msg) {
 //TODO
+        if (released) {
+            return;
+        }
 
 
 //        queue.offer(msg);
@@ -139,6 +146,9 @@ public class Context {
      */
 
     private void updateInterestOps() {
+        if (released) {
+            return;
+        }
         int interestOps = 0;
         if (!closed && bufferIn.hasRemaining()) {
             interestOps |= SelectionKey.OP_READ;
@@ -154,12 +164,22 @@ public class Context {
         key.interestOps(interestOps);
     }
 
-    private void silentlyClose() {
+    /**
+     * Close sc and give back both buffers to the pool. Nothing must be done with the
+     * context afterwards.
+     */
+    void silentlyClose() {
         try {
             sc.close();
         } catch (IOException e) {
             // ignore exception
         }
+        if (!released) {
+            released = true;
+            queue.clear();
+            BUFFER_POOL.release(bufferIn);
+            BUFFER_POOL.release(bufferOut);
+        }
     }
 
     /**
@@ -172,9 +192,9 @@ public class Context {
      */
     public void doRead() throws IOException {
         // TODO
-        System.out.println(bufferIn);
-
-        if (sc.read(bufferIn) == -1) {
+        var read = sc.read(bufferIn);
+        Trace.record(Trace.Event.READ, sc, read);
+        if (read == -1) {
             System.err.println("Connection closed by " + sc.getRemoteAddress());
             closed = true;
         }
@@ -195,12 +215,8 @@ public class Context {
     public void doWrite() throws IOException {
         // TODO
         bufferOut.flip();
-        System.out.println("<== Sending .... ");
-        System.out.println(username + " :::: " + text);
-
-
-        System.out.println(bufferOut);
-        sc.write(bufferOut);
+        var written = sc.write(bufferOut);
+        Trace.record(Trace.Event.WRITE, sc, written);
 
 
         bufferOut.compact();
@@ -1,12 +1,11 @@
 package fr.upem.net.tcp.nonblocking.chaton.server;
 
-import fr.upem.net.tcp.nonblocking.Helpers;
+import fr.upem.net.tcp.nonblocking.Trace;
 import fr.upem.net.tcp.nonblocking.chaton.Message;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.Channel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -29,19 +28,18 @@ public class ServerChaton {
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         while (!Thread.interrupted()) {
-            Helpers.printKeys(selector); // for debug
-            System.out.println("Starting select");
             try {
-                selector.select(this::treatKey);
+                Trace.record(Trace.Event.SELECT, -1);
+                var selected = selector.select(this::treatKey);
+                Trace.record(Trace.Event.SELECTED, selected);
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
-            System.out.println("Select finished");
         }
     }
 
     private void treatKey(SelectionKey key) {
-        Helpers.printSelectedKey(key); // for debug
+        Trace.recordKey(key);
         try {
             if (key.isValid() && key.isAcceptable()) {
                 doAccept(key);
@@ -60,7 +58,7 @@ public class ServerChaton {
             }
         } catch (IOException e) {
             logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-            silentlyClose(key);
+            ((Context) key.attachment()).silentlyClose();
         }
     }
 
@@ -79,15 +77,6 @@ public class ServerChaton {
         clientKey.attach(new Context(this, clientKey));
     }
 
-    private void silentlyClose(SelectionKey key) {
-        Channel sc = (Channel) key.channel();
-        try {
-            sc.close();
-        } catch (IOException e) {
-            // ignore exception
-        }
-    }
-
 
     /**
      * Add a message to all connected clients queue
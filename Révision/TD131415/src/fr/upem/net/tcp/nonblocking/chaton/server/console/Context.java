@@ -1,5 +1,8 @@
 package fr.upem.net.tcp.nonblocking.chaton.server.console;
 
+import fr.upem.net.tcp.nonblocking.SessionRegistry;
+import fr.upem.net.tcp.nonblocking.Trace;
+import fr.upem.net.tcp.nonblocking.chaton.DirectMessageReader;
 import fr.upem.net.tcp.nonblocking.chaton.Message;
 import fr.upem.net.tcp.nonblocking.chaton.MessageReader;
 import fr.upem.net.tcp.nonblocking.chaton.Reader;
@@ -12,7 +15,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 
-public class Context {
+public class Context implements SessionRegistry.Session {
 
     private static final int BUFFER_SIZE = 1_024;
     private final static Charset CHARSET = StandardCharsets.UTF_8;
@@ -21,9 +24,15 @@ public class Context {
     private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
     private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
     private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private boolean congested = false; // went over the high watermark and not yet back under the low one
+    private boolean paused = false; // reading suspended because our messages congest other clients
     private final ServerChatonWithConsole server; // we could also have Context as an instance class, which would naturally
     // give access to ServerChatInt.this
     private boolean closed = false;
+    private boolean released = false;
+    private int registryIndex = -1;
+    private Reader<?> reader; // null between two frames
 
     private String text;
     private String username;
@@ -32,14 +41,87 @@ public class Context {
         return username;
     }
 
+    /**
+     * Learn the username of this client from the message it sent, and keep the routing table
+     * of the server up to date.
+     *
+     * @param username the username of the last message
+     */
+    private void setUsername(String username) {
+        if (username.equals(this.username)) {
+            return;
+        }
+        server.route(this, this.username, username);
+        this.username = username;
+    }
+
     public boolean isClosed(){
         return closed;
     }
 
+    @Override
+    public int registryIndex() {
+        return registryIndex;
+    }
+
+    @Override
+    public void setRegistryIndex(int index) {
+        registryIndex = index;
+    }
+
     public Context(ServerChatonWithConsole server, SelectionKey key) {
         this.key = key;
         this.sc = (SocketChannel) key.channel();
         this.server = server;
+        server.memoryBudget().charge(bufferIn.capacity() + bufferOut.capacity());
+    }
+
+    /**
+     * @return the number of bytes held for this client, in its buffers and its queue
+     */
+    long memory() {
+        return bufferIn.capacity() + bufferOut.capacity() + queuedBytes;
+    }
+
+    long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Add delta to the number of bytes queued, and charge it to the memory budget of the server.
+     *
+     * @param delta the number of bytes queued, negative when bytes are sent or dropped
+     */
+    private void account(long delta) {
+        queuedBytes += delta;
+        server.memoryBudget().charge(delta);
+    }
+
+    /**
+     * Drop the messages of the queue that have not started to be copied in bufferOut,
+     * because the server is short of memory. The client stops being congested if its queue
+     * is back under the low watermark.
+     *
+     * @return the number of bytes dropped
+     */
+    long shed() {
+        var head = queue.peek() != null && queue.peek().position() != 0 ? queue.poll() : null;
+        var dropped = queuedBytes - (head == null ? 0 : head.remaining());
+        queue.clear();
+        if (head != null) {
+            queue.add(head);
+        }
+        account(-dropped);
+        if (congested && queuedBytes <= server.lowWatermark()) {
+            congested = false;
+            server.congestionEnded();
+        }
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "Context[" + username + ", " + memory() + " bytes, " + queue.size() + " queued messages]";
     }
 
     /**
@@ -50,14 +132,25 @@ public class Context {
      */
     private void processIn() {
         for (; ; ) {
-            Reader<Message> reader = new MessageReader();
+            if (reader == null) {
+                if (bufferIn.position() < Integer.BYTES) { // the first int tells the type of the frame
+                    return;
+                }
+                reader = DirectMessageReader.startsDirectMessage(bufferIn) ? new DirectMessageReader() : new MessageReader();
+            }
             Reader.ProcessStatus status = reader.process(bufferIn);
             switch (status) {
                 case DONE:
-                    var value = reader.get();
-                    this.username = value.username();
-                    server.broadcast(value);
-                    reader.reset();
+                    if (reader instanceof DirectMessageReader directReader) {
+                        var value = directReader.get();
+                        setUsername(value.message().username());
+                        server.sendDirect(value, this);
+                    } else {
+                        var value = ((MessageReader) reader).get();
+                        setUsername(value.username());
+                        server.broadcast(value, this);
+                    }
+                    reader = null;
                     break;
                 case REFILL:
                     return;
@@ -80,12 +173,18 @@ public class Context {
     }
 
     /**
-     * Add a message to the message queue, tries to fill bufferOut and updateInterestOps
+     * Add a message to the message queue, tries to fill bufferOut and updateInterestOps.
+     * <p>
+     * If the queue would go over the high watermark, the overflow policy of the server is applied.
      *
-     * @param msg
+     * @param msg    the message to add
+     * @param sender the context the message comes from, or null
      */
-    public void queueMessage(Message msg) {
+    public void queueMessage(Message msg, Context sender) {
 //TODO
+        if (!sc.isOpen()) {
+            return;
+        }
 
 
 //        queue.offer(msg);
@@ -99,12 +198,71 @@ public class Context {
                 .putInt(text.remaining())
                 .put(text)
                 .flip();
+        var size = buffer.remaining();
+        if (queuedBytes + size > server.highWatermark() && !overflow(size, sender)) {
+            return;
+        }
         queue.offer(buffer);
+        account(size);
         processOut();
+        server.recordQueue(queue.size(), queuedBytes);
         updateInterestOps();
 
     }
 
+    /**
+     * Apply the overflow policy of the server before queuing a message of size bytes.
+     *
+     * @param size   the size of the encoded message
+     * @param sender the context the message comes from, or null
+     * @return true if the message must still be queued
+     */
+    private boolean overflow(int size, Context sender) {
+        var policy = server.overflowPolicy();
+        server.countOverflow(policy);
+        switch (policy) {
+            case DISCONNECT:
+                silentlyClose();
+                return false;
+            case DROP_NEWEST:
+                congest(sender);
+                return false;
+            case DROP_OLDEST:
+                congest(sender);
+                // the head may be partially copied in bufferOut, dropping it would corrupt the stream
+                var head = queue.peek() != null && queue.peek().position() != 0 ? queue.poll() : null;
+                while (!queue.isEmpty() && queuedBytes + size > server.highWatermark()) {
+                    account(-queue.poll().remaining());
+                }
+                if (head != null) {
+                    queue.addFirst(head);
+                }
+                return true;
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    private void congest(Context sender) {
+        if (!congested) {
+            congested = true;
+            server.congestionStarted();
+        }
+        if (sender != null && sender != this) {
+            server.pauseProducer(sender);
+        }
+    }
+
+    void pause() {
+        paused = true;
+        updateInterestOps();
+    }
+
+    void resume() {
+        paused = false;
+        updateInterestOps();
+    }
+
     /**
      * Try to fill bufferOut from the message queue
      */
@@ -125,14 +283,20 @@ public class Context {
                 continue;
             }
             if (msg.remaining() <= bufferOut.remaining()) {
+                account(-msg.remaining());
                 bufferOut.put(msg);
             } else {
+                account(-bufferOut.remaining());
                 var oldLimit = msg.limit();
-                msg.limit(bufferOut.remaining());
+                msg.limit(msg.position() + bufferOut.remaining());
                 bufferOut.put(msg);
                 msg.limit(oldLimit);
             }
         }
+        if (congested && queuedBytes <= server.lowWatermark()) {
+            congested = false;
+            server.congestionEnded();
+        }
 
     }
 
@@ -146,27 +310,42 @@ public class Context {
      */
 
     private void updateInterestOps() {
+        if (!key.isValid()) {
+            return;
+        }
         int interestOps = 0;
-        if (!closed && bufferIn.hasRemaining()) {
+        if (!closed && !paused && bufferIn.hasRemaining()) {
             interestOps |= SelectionKey.OP_READ;
         }
         if (bufferOut.position() != 0) {
             interestOps |= SelectionKey.OP_WRITE;
         }
 
-        if (interestOps == 0) {
+        if (interestOps == 0 && !paused) {
             silentlyClose();
             return;
         }
         key.interestOps(interestOps);
     }
 
-    private void silentlyClose() {
+    void silentlyClose() {
         try {
             sc.close();
         } catch (IOException e) {
             // ignore exception
         }
+        if (released) {
+            return;
+        }
+        released = true;
+        server.unregister(this);
+        queue.clear();
+        account(-queuedBytes);
+        server.memoryBudget().credit(bufferIn.capacity() + bufferOut.capacity());
+        if (congested) {
+            congested = false;
+            server.congestionEnded();
+        }
     }
 
     /**
@@ -179,9 +358,9 @@ public class Context {
      */
     public void doRead() throws IOException {
         // TODO
-        System.out.println(bufferIn);
-
-        if (sc.read(bufferIn) == -1) {
+        var read = sc.read(bufferIn);
+        Trace.record(Trace.Event.READ, sc, read);
+        if (read == -1) {
             System.err.println("Connection closed by " + sc.getRemoteAddress());
             closed = true;
         }
@@ -202,12 +381,8 @@ public class Context {
     public void doWrite() throws IOException {
         // TODO
         bufferOut.flip();
-        System.out.println("<== Sending .... ");
-        System.out.println(username + " :::: " + text);
-
-
-        System.out.println(bufferOut);
-        sc.write(bufferOut);
+        var written = sc.write(bufferOut);
+        Trace.record(Trace.Event.WRITE, sc, written);
 
 
         bufferOut.compact();
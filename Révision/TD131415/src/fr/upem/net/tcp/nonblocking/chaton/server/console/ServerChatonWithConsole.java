@@ -1,74 +1,235 @@
 package fr.upem.net.tcp.nonblocking.chaton.server.console;
 
-import fr.upem.net.tcp.nonblocking.Helpers;
+import fr.upem.net.tcp.nonblocking.AcceptLimiter;
+import fr.upem.net.tcp.nonblocking.Histogram;
+import fr.upem.net.tcp.nonblocking.MemoryBudget;
+import fr.upem.net.tcp.nonblocking.SessionRegistry;
+import fr.upem.net.tcp.nonblocking.TaskQueue;
+import fr.upem.net.tcp.nonblocking.Trace;
+import fr.upem.net.tcp.nonblocking.chaton.DirectMessage;
 import fr.upem.net.tcp.nonblocking.chaton.Message;
+import fr.upem.net.tcp.nonblocking.chaton.OverflowPolicy;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Objects;
 import java.util.Scanner;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerChatonWithConsole {
     private static final Logger logger = Logger.getLogger(ServerChatonWithConsole.class.getName());
+    private static final int ACCEPT_BATCH = 16;
 
+    private final int port;
     private final ServerSocketChannel serverSocketChannel;
+    private SelectionKey serverKey;
     private final Selector selector;
+    private final SessionRegistry<Context> sessions = new SessionRegistry<>();
+    private final HashMap<String, Context> routes = new HashMap<>(); // the client of each username
+    private long directMessages = 0;
+    private long undeliverable = 0;
 
     private final Thread console;
 
     private enum Commands {
-        INFO, SHUTDOWN, SHUTDOWNNOW
+        INFO, MEMORY, TRACE, NOTRACE, DUMP, SHUTDOWN, SHUTDOWNNOW
     }
 
-    private final ArrayBlockingQueue<Commands> commandQueue = new ArrayBlockingQueue<>(1);
+    private final TaskQueue tasks;
+
+    private long lowWatermark = 256 * 1_024;
+    private long highWatermark = 1_024 * 1_024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private boolean pauseProducers = false;
+    private int congestedClients = 0;
+    private final ArrayList<Context> pausedProducers = new ArrayList<>();
+    private final EnumMap<OverflowPolicy, Long> overflows = new EnumMap<>(OverflowPolicy.class);
+    private long pauses = 0;
+    private MemoryBudget budget = MemoryBudget.unlimited();
+    private long sheds = 0;
+    private long refusals = 0;
+    private AcceptLimiter limiter = new AcceptLimiter(ACCEPT_BATCH, 0, 1, clock());
+    private int acceptBacklog = 0;
+
+    // reset by each INFO command, select wait and processing in microseconds
+    private final Histogram selectWait = new Histogram("us");
+    private final Histogram processing = new Histogram("us");
+    private final Histogram keysPerIteration = new Histogram("");
+    private final Histogram queueDepth = new Histogram("");
+    private final Histogram queueBytes = new Histogram("B");
+    private long iterationStart = 0; // nanoTime of the first selected key, 0 before it
 
     public ServerChatonWithConsole(int port) throws IOException {
+        this.port = port;
         serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
         selector = Selector.open();
+        tasks = new TaskQueue(selector);
 
         this.console = new Thread(this::consoleRun);
+        for (var policy : OverflowPolicy.values()) {
+            overflows.put(policy, 0L);
+        }
     }
 
-    private void consoleRun() {
+    /**
+     * Bound the number of bytes queued for each client. Must be called before launch.
+     * <p>
+     * When a message would make the queue of a client go over highWatermark, policy is applied.
+     * With the drop policies the client is then considered congested until its queue goes back
+     * under lowWatermark. If pauseProducers is true, the server stops reading from the clients
+     * whose messages did not fit, as long as at least one client is congested.
+     *
+     * @param lowWatermark   the number of queued bytes under which a client is not congested anymore
+     * @param highWatermark  the maximum number of queued bytes per client
+     * @param policy         the policy applied when the queue of a client is full
+     * @param pauseProducers whether the senders of the messages that do not fit are paused
+     */
+    public void setBackpressure(long lowWatermark, long highWatermark, OverflowPolicy policy, boolean pauseProducers) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("invalid watermarks " + lowWatermark + "/" + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.overflowPolicy = Objects.requireNonNull(policy);
+        this.pauseProducers = pauseProducers;
+    }
 
-        try {
-            try (var scanner = new Scanner(System.in)) {
-                while (scanner.hasNextLine()) {
-                    var command = scanner.nextLine();
-                    sendCommands(command);
-                }
-            }
-            logger.info("Console thread stopping");
-        } catch (InterruptedException e) {
-            logger.info("Console thread has been interrupted");
+    /**
+     * Bound the memory held for the clients, in their buffers and their queues. Must be
+     * called before launch.
+     * <p>
+     * Over 70% of limit, no client is accepted anymore. Over 85%, the largest queues are
+     * dropped. At limit, the new messages are dropped.
+     *
+     * @param limit the maximum number of bytes
+     */
+    public void setMemoryBudget(long limit) {
+        budget = new MemoryBudget(limit);
+    }
+
+    /**
+     * Bound the rate at which new connections are admitted. Must be called before launch.
+     * <p>
+     * At most batch connections are accepted per wakeup. The connections beyond ratePerSecond,
+     * with bursts of at most burst connections, wait until they can be admitted; when burst
+     * connections are already waiting, the new ones are closed at once.
+     *
+     * @param batch         the maximum number of connections accepted per wakeup
+     * @param backlog       the length of the listen backlog, 0 for the default of the system
+     * @param ratePerSecond the number of connections admitted per second, 0 for no limit
+     * @param burst         the maximum number of connections admitted at once, or waiting
+     */
+    public void setAcceptLimits(int batch, int backlog, double ratePerSecond, int burst) {
+        if (backlog < 0) {
+            throw new IllegalArgumentException("backlog must not be negative");
         }
+        limiter = new AcceptLimiter(batch, ratePerSecond, burst, clock());
+        acceptBacklog = backlog;
+    }
 
+    MemoryBudget memoryBudget() {
+        return budget;
     }
 
-    private void sendCommands(String command) throws InterruptedException {
+    long lowWatermark() {
+        return lowWatermark;
+    }
 
-        if (commandQueue.isEmpty()) {
-            try {
-                commandQueue.put(Commands.valueOf(command.toUpperCase()));
-            } catch (IllegalArgumentException e) {
-                logger.warning("Invalid Command");
-            }
-            selector.wakeup();
-        } else logger.info("Please wait!!!");
+    long highWatermark() {
+        return highWatermark;
+    }
+
+    OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    void countOverflow(OverflowPolicy policy) {
+        overflows.merge(policy, 1L, Long::sum);
     }
 
-    private void receiveCommand() throws IOException {
+    void congestionStarted() {
+        congestedClients++;
+    }
+
+    void congestionEnded() {
+        congestedClients--;
+        if (congestedClients == 0) {
+            pausedProducers.forEach(Context::resume);
+            pausedProducers.clear();
+        }
+    }
+
+    /**
+     * Record the size of the queue of a client after a message has been added to it.
+     *
+     * @param depth the number of messages in the queue
+     * @param bytes the number of bytes of these messages
+     */
+    void recordQueue(int depth, long bytes) {
+        queueDepth.record(depth);
+        queueBytes.record(bytes);
+    }
+
+    void pauseProducer(Context producer) {
+        if (!pauseProducers || congestedClients == 0 || pausedProducers.contains(producer)) {
+            return;
+        }
+        pauses++;
+        pausedProducers.add(producer);
+        producer.pause();
+    }
 
-        if (commandQueue.isEmpty()) return;
+    /**
+     * Run task on the thread of the selector loop. Can be called from any thread, tasks are
+     * never rejected and run in the order they were posted.
+     *
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        tasks.post(task);
+    }
 
-        switch (commandQueue.poll()) {
+    private void consoleRun() {
+        try (var scanner = new Scanner(System.in)) {
+            while (scanner.hasNextLine()) {
+                var command = scanner.nextLine();
+                sendCommands(command);
+            }
+        }
+        logger.info("Console thread stopping");
+    }
+
+    private void sendCommands(String command) {
+        Commands parsed;
+        try {
+            parsed = Commands.valueOf(command.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid Command");
+            return;
+        }
+        execute(() -> {
+            try {
+                receiveCommand(parsed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void receiveCommand(Commands command) throws IOException {
+        switch (command) {
             case INFO -> showAllClients();
+            case MEMORY -> showMemory();
+            case TRACE -> Trace.enable();
+            case NOTRACE -> Trace.disable();
+            case DUMP -> Trace.dump(System.out);
             case SHUTDOWN -> serverSocketChannel.close();
             case SHUTDOWNNOW -> shutdownServer();
             default -> logger.warning("Invalid Command");
@@ -78,15 +239,57 @@ public class ServerChatonWithConsole {
     private void showAllClients() {
         System.out.println("Clients Connected");
         AtomicInteger count = new AtomicInteger();
-        selector.keys().forEach(oneKey -> {
-            var context = (Context) oneKey.attachment();
-            var client = oneKey.channel();
-            if (client != serverSocketChannel && !context.isClosed()) {
+        sessions.forEach(context -> {
+            if (!context.isClosed()) {
                 System.out.println(context);
                 count.getAndIncrement();
             }
         });
         System.out.println("\nnumber of clients connected :: " + count);
+        System.out.println("congested clients :: " + congestedClients + ", paused producers :: " + pausedProducers.size());
+        System.out.println("overflows :: " + overflows + ", pauses :: " + pauses);
+        System.out.println("accepted :: " + limiter.acceptedCount() + ", deferred :: " + limiter.deferredCount()
+                + ", rejected :: " + limiter.rejectedCount());
+        System.out.println("routes :: " + routes.size() + ", direct messages :: " + directMessages
+                + ", undeliverable :: " + undeliverable);
+        showMemory();
+        System.out.println("select wait :: " + selectWait);
+        System.out.println("processing per iteration :: " + processing);
+        System.out.println("keys per iteration :: " + keysPerIteration);
+        System.out.println("queue depth :: " + queueDepth);
+        System.out.println("queued bytes :: " + queueBytes);
+        selectWait.reset();
+        processing.reset();
+        keysPerIteration.reset();
+        queueDepth.reset();
+        queueBytes.reset();
+    }
+
+    private void showMemory() {
+        System.out.println("memory :: " + budget + ", shed queues :: " + sheds + ", refused messages :: " + refusals);
+    }
+
+    /**
+     * React to the memory usage at the end of an iteration: stop accepting clients while over
+     * the first threshold, and drop the largest queues while over the second one.
+     */
+    private void applyMemoryBudget() {
+        if (serverKey.isValid()) {
+            serverKey.interestOps(budget.acceptsConnections() ? SelectionKey.OP_ACCEPT : 0);
+        }
+        while (budget.mustShed()) {
+            Context largest = null;
+            for (var i = 0; i < sessions.size(); i++) {
+                var context = sessions.get(i);
+                if (largest == null || context.queuedBytes() > largest.queuedBytes()) {
+                    largest = context;
+                }
+            }
+            if (largest == null || largest.shed() == 0) {
+                return;
+            }
+            sheds++;
+        }
     }
 
     private void shutdownServer() throws IOException {
@@ -97,26 +300,45 @@ public class ServerChatonWithConsole {
     }
 
     public void launch() throws IOException {
+        serverSocketChannel.bind(new InetSocketAddress(port), acceptBacklog);
         serverSocketChannel.configureBlocking(false);
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        serverKey = serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
         console.start();
 
         while (!Thread.interrupted()) {
-            Helpers.printKeys(selector); // for debug
-            System.out.println("Starting select");
             try {
-                selector.select(this::treatKey);
-                receiveCommand();
+                // while short of memory, the deferred clients wait like those of the listen backlog
+                var timeout = budget.acceptsConnections() ? limiter.timeout(clock()) : -1;
+                Trace.record(Trace.Event.SELECT, timeout);
+                var selectStart = System.nanoTime();
+                iterationStart = 0;
+                var selected = timeout == 0
+                        ? selector.selectNow(this::treatKey)
+                        : selector.select(this::treatKey, Math.max(timeout, 0));
+                Trace.record(Trace.Event.SELECTED, selected);
+                if (iterationStart == 0) {
+                    iterationStart = System.nanoTime();
+                }
+                selectWait.record((iterationStart - selectStart) / 1_000);
+                keysPerIteration.record(selected);
+                tasks.runAll();
+                if (budget.acceptsConnections()) {
+                    limiter.admitDeferred(clock(), this::register);
+                }
+                applyMemoryBudget();
+                processing.record((System.nanoTime() - iterationStart) / 1_000);
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
-            System.out.println("Select finished");
         }
     }
 
     private void treatKey(SelectionKey key) {
-        Helpers.printSelectedKey(key); // for debug
+        if (iterationStart == 0) { // the keys are handled inside select, the wait ends with the first one
+            iterationStart = System.nanoTime();
+        }
+        Trace.recordKey(key);
         try {
             if (key.isValid() && key.isAcceptable()) {
                 doAccept(key);
@@ -135,25 +357,32 @@ public class ServerChatonWithConsole {
             }
         } catch (IOException e) {
             logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-            silentlyClose(key);
+            ((Context) key.attachment()).silentlyClose();
         }
     }
 
     private void doAccept(SelectionKey key) throws IOException {
-        // TODO
-
-        var sc = serverSocketChannel.accept();
+        // accepting up to a batch of clients, those over the rate wait in the limiter
+        limiter.acceptAll(serverSocketChannel, clock(), this::register);
+    }
 
+    private void register(SocketChannel sc) {
+        try {
+            sc.configureBlocking(false);
+            var clientKey = sc.register(selector, SelectionKey.OP_READ);
 
-        if (sc == null) {
-            logger.warning("Selector Lied");
-            return;
+            var context = new Context(this, clientKey);
+            clientKey.attach(context);
+            sessions.add(context);
+            Trace.record(Trace.Event.ACCEPT, sc, 0);
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Could not register client", e);
+            try {
+                sc.close();
+            } catch (IOException e2) {
+                // ignore exception
+            }
         }
-
-        sc.configureBlocking(false);
-        var clientKey = sc.register(selector, SelectionKey.OP_READ);
-
-        clientKey.attach(new Context(this, clientKey));
     }
 
     private void silentlyClose(SelectionKey key) {
@@ -168,27 +397,73 @@ public class ServerChatonWithConsole {
 
 
 
+    void unregister(Context context) {
+        sessions.remove(context);
+        if (context.getUsername() != null) {
+            routes.remove(context.getUsername(), context);
+        }
+    }
+
     /**
-     * Add a message to all connected clients queue
+     * Record that username now designates context. If several clients use the same
+     * username, the direct messages go to the last one that sent a message.
      *
-     * @param msg
+     * @param context  the client
+     * @param previous the username the client used before, or null
+     * @param username the username of the client
      */
-    public void broadcast(Message msg) {
-        // TODO
+    void route(Context context, String previous, String username) {
+        if (previous != null) {
+            routes.remove(previous, context);
+        }
+        routes.put(username, context);
+    }
 
-        selector.keys().forEach(k -> {
-            if (k.channel() == serverSocketChannel) return;
+    /**
+     * Add a direct message to the queue of its recipient only. The message is dropped if no
+     * client uses the username of the recipient.
+     *
+     * @param directMessage the message and its recipient
+     * @param sender        the context the message comes from
+     */
+    void sendDirect(DirectMessage directMessage, Context sender) {
+        if (budget.refusesFrames()) {
+            refusals++;
+            return;
+        }
+        var recipient = routes.get(directMessage.recipient());
+        if (recipient == null) {
+            undeliverable++;
+            return;
+        }
+        directMessages++;
+        recipient.queueMessage(directMessage.message(), sender);
+    }
 
-            var currentClient = msg.username();
-            var context = (Context) k.attachment();
+    /**
+     * Add a message to the queue of all connected clients but the sender
+     *
+     * @param msg    the message to add
+     * @param sender the context the message comes from
+     */
+    public void broadcast(Message msg, Context sender) {
+        // TODO
+        if (budget.refusesFrames()) {
+            refusals++;
+            return;
+        }
 
-            if (context.getUsername() != currentClient) {
-                (context).queueMessage(msg);
+        sessions.forEach(context -> {
+            if (context != sender) {
+                context.queueMessage(msg, sender);
             }
-
         });
     }
 
+    private static long clock() {
+        return System.nanoTime() / 1_000_000;
+    }
+
     public static void main(String[] args) throws NumberFormatException, IOException {
         if (args.length != 1) {
             usage();
@@ -1,5 +1,7 @@
 package fr.upem.net.tcp.nonblocking.t10;
 
+import fr.upem.net.tcp.nonblocking.Trace;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
@@ -49,11 +51,12 @@ public class Context {
      */
     void doRead() throws IOException {
         // TODO
-        if (sc.read(buffer) == -1) {
+        var read = sc.read(buffer);
+        Trace.record(Trace.Event.READ, sc, read);
+        if (read == -1) {
             System.err.println("Connection Closed by " + sc.getRemoteAddress());
             closed = true;
         }
-        System.out.println("==> Receiving from the client");
         updateInterestOps();
     }
 
@@ -75,8 +78,8 @@ public class Context {
             return;
         }
 
-        System.out.println("<== Sending to the client");
-        sc.write(buffer);
+        var written = sc.write(buffer);
+        Trace.record(Trace.Event.WRITE, sc, written);
         buffer.clear();
         updateInterestOps();
 
@@ -1,6 +1,7 @@
 package fr.upem.net.tcp.nonblocking.t11;
 
 import fr.upem.net.tcp.nonblocking.Helpers;
+import fr.upem.net.tcp.nonblocking.Trace;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -39,7 +40,6 @@ public class Context {
         while (bufferIn.remaining() >= Integer.BYTES * 2 && bufferOut.remaining() >= Integer.BYTES) {
             var one = bufferIn.getInt();
             var two = bufferIn.getInt();
-            System.out.println("==> Receiving from clint " + one + ", " + two);
             bufferOut.putInt(one + two);
         }
         bufferIn.compact();
@@ -103,7 +103,9 @@ public class Context {
 
     void doRead() throws IOException {
         // TODO
-        if (sc.read(bufferIn) == -1) {
+        var read = sc.read(bufferIn);
+        Trace.record(Trace.Event.READ, sc, read);
+        if (read == -1) {
             System.err.println("Connection closed by " + sc.getRemoteAddress());
             closed = true;
         }
@@ -125,9 +127,9 @@ public class Context {
     void doWrite() throws IOException {
 
         bufferOut.flip();
-        System.out.println("<== Sending .... ");
 
-        sc.write(bufferOut);
+        var written = sc.write(bufferOut);
+        Trace.record(Trace.Event.WRITE, sc, written);
 
         bufferOut.compact();
         updateInterestOps();
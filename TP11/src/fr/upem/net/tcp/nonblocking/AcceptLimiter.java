@@ -0,0 +1,161 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Admission of the connections of a listening socket, for the thread of the selector loop
+ * that accepts them.
+ * <p>
+ * At most batch connections are accepted per OP_ACCEPT wakeup, so a connect storm costs one
+ * select for batch clients instead of one per client, while still leaving the established
+ * clients their turn. The admission rate is bounded by a token bucket: a connection that finds
+ * no token is deferred, it waits accepted but not registered until the bucket refills. When
+ * burst connections are already deferred, the new ones are rejected: closed at once with a
+ * reset, so that the client retries later instead of waiting on a server that cannot keep up.
+ * <p>
+ * The times are in milliseconds, from the clock of the loop. Not thread-safe, except for the
+ * counters.
+ */
+public class AcceptLimiter {
+    private final int batch;
+    private final double ratePerMillis; // 0 when the rate is not limited
+    private final int burst;
+    private final ArrayDeque<SocketChannel> deferred = new ArrayDeque<>();
+    private double tokens;
+    private long refilled; // time of the last refill of the bucket
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder deferrals = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param batch         the maximum number of connections accepted per wakeup
+     * @param ratePerSecond the number of connections admitted per second, 0 for no limit
+     * @param burst         the size of the bucket, which is also the maximum number of deferred connections
+     * @param now           the current time
+     */
+    public AcceptLimiter(int batch, double ratePerSecond, int burst, long now) {
+        if (batch <= 0 || ratePerSecond < 0 || burst <= 0) {
+            throw new IllegalArgumentException("batch and burst must be positive, and ratePerSecond not negative");
+        }
+        this.batch = batch;
+        this.ratePerMillis = ratePerSecond / 1_000;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilled = now;
+    }
+
+    /**
+     * Accept the pending connections, at most batch of them, after the deferred ones that can
+     * now be admitted.
+     *
+     * @param ssc   the listening socket, in non-blocking mode
+     * @param now   the current time
+     * @param admit called with each admitted connection, still in blocking mode
+     * @throws IOException if accept fails
+     */
+    public void acceptAll(ServerSocketChannel ssc, long now, Consumer<SocketChannel> admit) throws IOException {
+        admitDeferred(now, admit);
+        for (var i = 0; i < batch; i++) {
+            var client = ssc.accept();
+            if (client == null) {
+                return;
+            }
+            if (deferred.isEmpty() && tryAcquire()) {
+                accepted.increment();
+                admit.accept(client);
+            } else if (deferred.size() < burst) {
+                deferred.add(client);
+                deferrals.increment();
+            } else {
+                reject(client);
+            }
+        }
+    }
+
+    /**
+     * Admit the deferred connections for which the bucket has refilled, in the order they were
+     * accepted.
+     *
+     * @param now   the current time
+     * @param admit called with each admitted connection, still in blocking mode
+     */
+    public void admitDeferred(long now, Consumer<SocketChannel> admit) {
+        refill(now);
+        while (!deferred.isEmpty() && tryAcquire()) {
+            accepted.increment();
+            admit.accept(deferred.poll());
+        }
+    }
+
+    /**
+     * Returns the time to wait before the next call to admitDeferred may have something to do.
+     *
+     * @param now the current time
+     * @return -1 if no connection is deferred, 0 if admitDeferred must be called now, or a number of milliseconds
+     */
+    public long timeout(long now) {
+        if (deferred.isEmpty()) {
+            return -1;
+        }
+        refill(now);
+        if (tokens >= 1) {
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / ratePerMillis));
+    }
+
+    private void refill(long now) {
+        if (ratePerMillis != 0 && now > refilled) {
+            tokens = Math.min(burst, tokens + (now - refilled) * ratePerMillis);
+        }
+        refilled = Math.max(refilled, now);
+    }
+
+    private boolean tryAcquire() {
+        if (ratePerMillis == 0) {
+            return true;
+        }
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private void reject(SocketChannel client) {
+        rejected.increment();
+        try {
+            client.setOption(StandardSocketOptions.SO_LINGER, 0);
+            client.close();
+        } catch (IOException e) {
+            // ignore exception
+        }
+    }
+
+    /**
+     * @return the number of connections admitted, deferred ones included once admitted
+     */
+    public long acceptedCount() {
+        return accepted.sum();
+    }
+
+    /**
+     * @return the number of connections that had to wait for a token
+     */
+    public long deferredCount() {
+        return deferrals.sum();
+    }
+
+    /**
+     * @return the number of connections closed because too many were already deferred
+     */
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+}
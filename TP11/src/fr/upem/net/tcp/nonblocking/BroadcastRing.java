@@ -0,0 +1,143 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of frames published by a single writer and read by many cursors.
+ * <p>
+ * Each frame gets a sequence number, and a reader only keeps the sequence of the next frame
+ * it has to send (its cursor), plus the number of bytes of this frame already sent. Publishing
+ * a frame is thus one store in the ring, whatever the number of readers. The frames are also
+ * numbered in bytes: the position of a frame is the number of bytes published before it, so
+ * the backlog of a reader is a subtraction.
+ * <p>
+ * The ring holds at most capacity frames and maxBytes bytes. It never reclaims a slot by itself:
+ * when offer fails, the owner moves (or gives up) the cursors that are too far behind and calls
+ * reclaim with the sequence of the slowest remaining cursor.
+ * <p>
+ * The frames are stored as given, in read-mode starting at position 0. A reader may change their
+ * position and limit, for instance for a gathering write, as long as it restores them before
+ * giving the hand back. This class is not thread-safe: the writer and the readers must be the
+ * same thread, typically the thread of a selector loop.
+ */
+public class BroadcastRing {
+    private final ByteBuffer[] frames;
+    private final long[] positions;
+    private final int mask;
+    private final long maxBytes;
+    private long head = 0; // sequence of the next frame to publish
+    private long tail = 0; // sequence of the oldest frame kept
+    private long published = 0; // position of the next frame to publish
+
+    /**
+     * @param capacity the maximum number of frames, a power of two
+     * @param maxBytes the maximum number of bytes of the frames kept, the ring can still hold one
+     *                 frame bigger than that
+     */
+    public BroadcastRing(int capacity, long maxBytes) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.frames = new ByteBuffer[capacity];
+        this.positions = new long[capacity];
+        this.mask = capacity - 1;
+        this.maxBytes = maxBytes;
+    }
+
+    public long head() {
+        return head;
+    }
+
+    public long tail() {
+        return tail;
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Publish a frame, unless the ring is full.
+     *
+     * @param frame a buffer in read-mode with position 0
+     * @return false if the ring would go over capacity frames or maxBytes bytes
+     */
+    public boolean offer(ByteBuffer frame) {
+        var size = frame.remaining();
+        if (!isEmpty() && (head - tail == frames.length || published - position(tail) + size > maxBytes)) {
+            return false;
+        }
+        var index = (int) head & mask;
+        frames[index] = frame;
+        positions[index] = published;
+        published += size;
+        head++;
+        return true;
+    }
+
+    /**
+     * @param sequence the sequence of a frame between tail (included) and head (excluded)
+     * @return the frame
+     */
+    public ByteBuffer get(long sequence) {
+        checkSequence(sequence, head - 1);
+        return frames[(int) sequence & mask];
+    }
+
+    /**
+     * @param sequence the sequence of a frame between tail and head (both included)
+     * @return the number of bytes published before the frame, or before the next frame for head
+     */
+    public long position(long sequence) {
+        checkSequence(sequence, head);
+        if (sequence == head) {
+            return published;
+        }
+        return positions[(int) sequence & mask];
+    }
+
+    /**
+     * @param sequence the sequence of a frame between tail (included) and head (excluded)
+     * @return the size of the frame in bytes
+     */
+    public int size(long sequence) {
+        return (int) (position(sequence + 1) - position(sequence));
+    }
+
+    /**
+     * Returns the oldest sequence to keep so that half the ring is free, and that a frame of size
+     * bytes can then be published. The cursors behind it must be moved before calling reclaim.
+     *
+     * @param size the size of the frame that did not fit
+     * @return a sequence between tail and head
+     */
+    public long keepFrom(int size) {
+        var keptBytes = Math.min(maxBytes / 2, maxBytes - size);
+        var sequence = Math.max(tail, head - frames.length / 2);
+        while (sequence < head && published - position(sequence) > keptBytes) {
+            sequence++;
+        }
+        return sequence;
+    }
+
+    /**
+     * Forget the frames before sequence. No cursor must still be behind it.
+     *
+     * @param sequence the new tail, between tail and head
+     */
+    public void reclaim(long sequence) {
+        checkSequence(sequence, head);
+        for (; tail < sequence; tail++) {
+            frames[(int) tail & mask] = null;
+        }
+    }
+
+    private void checkSequence(long sequence, long max) {
+        if (sequence < tail || sequence > max) {
+            throw new IllegalArgumentException("sequence " + sequence + " out of [" + tail + ", " + max + "]");
+        }
+    }
+}
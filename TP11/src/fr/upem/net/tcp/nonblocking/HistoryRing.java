@@ -0,0 +1,102 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * History of the last frames sent, kept as their wire bytes in a single direct buffer.
+ * <p>
+ * The frames are copied back to back in the buffer, which is used circularly, so the whole
+ * history is always one or two contiguous regions of it: it can be replayed to a new connection
+ * with one gathering write, without encoding anything again. Only the sizes of the frames are
+ * kept on the side, in an array of maxFrames ints, so that the oldest ones can be dropped when
+ * the history holds maxFrames frames or maxBytes bytes. Adding a frame allocates nothing.
+ * <p>
+ * This class is not thread-safe: it is meant to be owned by the thread of a selector loop.
+ */
+public class HistoryRing {
+    private final ByteBuffer data; // direct, of maxBytes bytes
+    private final int[] sizes; // of the frames, circularly from first
+    private int first = 0; // index in sizes of the oldest frame
+    private int count = 0;
+    private int start = 0; // offset in data of the oldest frame
+    private int bytes = 0;
+
+    /**
+     * @param maxFrames the maximum number of frames kept
+     * @param maxBytes  the maximum number of bytes kept
+     */
+    public HistoryRing(int maxFrames, int maxBytes) {
+        if (maxFrames <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxFrames and maxBytes must be positive");
+        }
+        this.data = ByteBuffer.allocateDirect(maxBytes);
+        this.sizes = new int[maxFrames];
+    }
+
+    /**
+     * Add a copy of frame to the history, dropping the oldest frames as needed. A frame bigger
+     * than maxBytes empties the history, since the frames before it can not be replayed without it.
+     *
+     * @param frame a buffer in read-mode, its position is not moved
+     */
+    public void add(ByteBuffer frame) {
+        var size = frame.remaining();
+        if (size > data.capacity()) {
+            clear();
+            return;
+        }
+        while (count == sizes.length || bytes + size > data.capacity()) {
+            var oldest = sizes[first];
+            first = (first + 1) % sizes.length;
+            count--;
+            start = (start + oldest) % data.capacity();
+            bytes -= oldest;
+        }
+        var end = (start + bytes) % data.capacity();
+        var contiguous = Math.min(size, data.capacity() - end);
+        data.put(end, frame, frame.position(), contiguous);
+        data.put(0, frame, frame.position() + contiguous, size - contiguous);
+        sizes[(first + count) % sizes.length] = size;
+        count++;
+        bytes += size;
+    }
+
+    public void clear() {
+        first = 0;
+        count = 0;
+        start = 0;
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of frames kept
+     */
+    public int frames() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes kept
+     */
+    public int bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns read-only views of the bytes of the history, oldest first, for a gathering write.
+     * The views are only valid until the next call to add or clear.
+     *
+     * @return zero, one or two buffers in read-mode
+     */
+    public ByteBuffer[] views() {
+        if (bytes == 0) {
+            return new ByteBuffer[0];
+        }
+        var contiguous = Math.min(bytes, data.capacity() - start);
+        var head = data.slice(start, contiguous).asReadOnlyBuffer();
+        if (contiguous == bytes) {
+            return new ByteBuffer[]{head};
+        }
+        return new ByteBuffer[]{head, data.slice(0, bytes - contiguous).asReadOnlyBuffer()};
+    }
+}
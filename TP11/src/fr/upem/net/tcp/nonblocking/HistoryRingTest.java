@@ -0,0 +1,63 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class HistoryRingTest {
+
+    private static ByteBuffer frame(int value, int size) {
+        var frame = ByteBuffer.allocate(size);
+        while (frame.hasRemaining()) {
+            frame.put((byte) value);
+        }
+        return frame.flip();
+    }
+
+    private static List<Byte> replay(HistoryRing history) {
+        var bytes = new ArrayList<Byte>();
+        for (var view : history.views()) {
+            while (view.hasRemaining()) {
+                bytes.add(view.get());
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public void keepsTheLastFrames() {
+        var history = new HistoryRing(2, 100);
+        history.add(frame(1, 3));
+        history.add(frame(2, 2));
+        history.add(frame(3, 1));
+        assertEquals(2, history.frames());
+        assertEquals(3, history.bytes());
+        assertEquals(List.<Byte>of((byte) 2, (byte) 2, (byte) 3), replay(history));
+    }
+
+    @Test
+    public void wrapsAroundTheBuffer() {
+        var history = new HistoryRing(10, 10);
+        var frame = frame(1, 4);
+        history.add(frame);
+        history.add(frame(2, 4));
+        history.add(frame(3, 4));
+        assertEquals(0, frame.position());
+        assertEquals(2, history.views().length);
+        assertEquals(List.<Byte>of((byte) 2, (byte) 2, (byte) 2, (byte) 2, (byte) 3, (byte) 3, (byte) 3, (byte) 3),
+                replay(history));
+    }
+
+    @Test
+    public void tooBigFrameEmptiesTheHistory() {
+        var history = new HistoryRing(10, 10);
+        history.add(frame(1, 4));
+        history.add(frame(2, 11));
+        assertEquals(0, history.frames());
+        assertEquals(0, history.views().length);
+    }
+}
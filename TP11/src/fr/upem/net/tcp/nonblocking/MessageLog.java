@@ -0,0 +1,443 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of frames, in segments of fixed size mapped in memory.
+ * <p>
+ * The frames are stored as given, back to back, so the log is the stream of bytes sent to the
+ * clients and the offset of a frame is the number of bytes logged before it. Each segment is a
+ * file named after the offset of its first frame; a frame never spans two segments. Only the
+ * last segment, the one frames are appended to, is open for writing and mapped: a segment is
+ * closed and its mapping dropped once it is full and synced, and the oldest segments are
+ * deleted so that at most maxSegments are kept.
+ * <p>
+ * Appending is a copy into the mapping, the bytes reach the disk when the log is synced, by a
+ * thread of the log and outside its lock, so that appending never waits for the disk. A sync
+ * is requested according to the policy:
+ * <ul>
+ *     <li>MESSAGE: after each frame, the requests made during a sync being served by the next,</li>
+ *     <li>BATCH: when endBatch is called, typically at the end of an iteration of a loop,</li>
+ *     <li>PERIODIC: when sync is called, typically by a timer.</li>
+ * </ul>
+ * The first bytes of a segment hold the number of bytes of frames synced, written once the
+ * frames themselves are on disk. When the log is opened again, only these bytes are kept: a
+ * frame that was not synced before a crash is lost, but a frame is never half there. If a
+ * sync fails, nothing is appended anymore.
+ * <p>
+ * As appending does not wait for the disk, a frame that must not be delivered before it is
+ * synced, as with the MESSAGE policy, is delivered by an action given to whenSynced, which the
+ * syncer runs once the frame is on disk.
+ * <p>
+ * The bytes are read back with transferTo, from the file to the channel, without going
+ * through the heap, with one read-only channel per segment read. Appending, syncing and transferring can be done from any thread.
+ */
+public class MessageLog implements Closeable {
+    public enum SyncPolicy {
+        MESSAGE, BATCH, PERIODIC
+    }
+
+    public static final int HEADER = Long.BYTES; // number of bytes synced in the segment, before its frames
+    private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+    private static final String SUFFIX = ".log";
+
+    private record Waiter(long offset, Runnable action) {
+    }
+
+    private static final class Segment {
+        private final long base; // offset in the log of the first frame
+        private FileChannel channel; // null once sealed and synced
+        private MappedByteBuffer map; // null once sealed and synced
+        private FileChannel reader; // opened by the first transfer, closed when the segment is deleted
+        private volatile int size; // of the frames appended
+        private int requested; // size of the frames to sync
+        private int synced; // size of the frames on disk
+        private boolean sealed = false; // full, nothing is appended anymore
+
+        private Segment(long base, FileChannel channel, MappedByteBuffer map, int size) {
+            this.base = base;
+            this.channel = channel;
+            this.map = map;
+            this.size = size;
+            this.requested = size;
+            this.synced = size;
+        }
+
+        private void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+                map = null; // unmapped when collected, there is no way to unmap it now
+            }
+        }
+
+        private void closeReader() throws IOException {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final SyncPolicy policy;
+    private final int maxSegments;
+    private final ArrayList<Segment> segments = new ArrayList<>(); // by increasing base
+    private final ArrayDeque<Segment> unsynced = new ArrayDeque<>(); // with a sync requested, oldest first
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>(); // by increasing offset
+    private final Thread syncer;
+    private Segment active;
+    private long synced; // offset of the end of the frames on disk
+    private IOException failure; // of the last sync, after which the log is unusable
+    private boolean closed = false;
+
+    /**
+     * Open the log of directory, creating it if needed. The frames synced by a previous run
+     * are kept and the next ones are appended after them.
+     *
+     * @param directory   the directory of the segments
+     * @param segmentSize the size of the files of the segments, which bounds the size of a frame
+     * @param policy      when the frames are synced
+     * @param maxSegments the number of segments kept, at least 2
+     * @throws IOException if the directory or a segment can not be opened
+     */
+    public MessageLog(Path directory, int segmentSize, SyncPolicy policy, int maxSegments) throws IOException {
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("segmentSize must be greater than " + HEADER);
+        }
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("maxSegments must be at least 2");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.policy = Objects.requireNonNull(policy);
+        this.maxSegments = maxSegments;
+        try (var files = Files.list(directory)) {
+            var bases = files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - SUFFIX.length())))
+                    .sorted()
+                    .toArray();
+            for (var base : bases) {
+                if (!segments.isEmpty() && base != end()) { // the frames after a gap can not be located
+                    break;
+                }
+                segments.add(new Segment(base, null, null, readSynced(base)));
+            }
+        }
+        if (segments.isEmpty()) {
+            active = open(0);
+            segments.add(active);
+        } else {
+            segments.forEach(segment -> segment.sealed = true);
+            var last = segments.remove(segments.size() - 1);
+            active = open(last.base);
+            segments.add(active);
+            deleteOldest();
+        }
+        synced = end();
+        syncer = new Thread(this::syncLoop, "log-syncer");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    private Path path(long base) {
+        return directory.resolve(String.format("%020d", base) + SUFFIX);
+    }
+
+    private Segment open(long base) throws IOException {
+        var channel = FileChannel.open(path(base),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        return new Segment(base, channel, map, valid(map.getLong(0)));
+    }
+
+    private int readSynced(long base) throws IOException {
+        try (var channel = FileChannel.open(path(base), StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+                // read the whole header
+            }
+            return header.hasRemaining() ? 0 : valid(header.getLong(0));
+        }
+    }
+
+    private int valid(long synced) {
+        return synced < 0 || synced > segmentSize - HEADER ? 0 : (int) synced;
+    }
+
+    private Segment roll() throws IOException {
+        active.sealed = true; // its header must be final before it is closed
+        if (active.synced == active.size) {
+            active.close();
+        } else {
+            request(active);
+        }
+        var segment = open(end());
+        segments.add(segment);
+        deleteOldest();
+        return segment;
+    }
+
+    private void deleteOldest() throws IOException {
+        while (segments.size() > maxSegments) {
+            var oldest = segments.remove(0);
+            unsynced.remove(oldest);
+            oldest.close();
+            oldest.closeReader();
+            Files.deleteIfExists(path(oldest.base));
+        }
+    }
+
+    /**
+     * Append a copy of frame to the log, and request a sync if the policy is MESSAGE.
+     *
+     * @param frame a buffer in read-mode, its position is not moved
+     * @return the offset of the end of the log, after the frame
+     * @throws IOException if a new segment can not be created or a sync has failed
+     */
+    public synchronized long append(ByteBuffer frame) throws IOException {
+        if (failure != null) {
+            throw new IOException("the log could not be synced", failure);
+        }
+        var length = frame.remaining();
+        if (length > segmentSize - HEADER) {
+            throw new IllegalArgumentException("frame of " + length + " bytes bigger than a segment");
+        }
+        if (active.size + length > segmentSize - HEADER) {
+            active = roll();
+        }
+        active.map.put(HEADER + active.size, frame, frame.position(), length);
+        active.size += length;
+        if (policy == SyncPolicy.MESSAGE) {
+            request(active);
+        }
+        return end();
+    }
+
+    /**
+     * Request a sync of the frames appended since the last call if the policy is BATCH.
+     */
+    public synchronized void endBatch() {
+        if (policy == SyncPolicy.BATCH) {
+            request(active);
+        }
+    }
+
+    /**
+     * Request a sync of the frames appended, whatever the policy.
+     */
+    public synchronized void sync() {
+        request(active);
+    }
+
+    private void request(Segment segment) {
+        if (segment.requested == segment.size) {
+            return;
+        }
+        segment.requested = segment.size;
+        if (!unsynced.contains(segment)) {
+            unsynced.add(segment);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Run action on the thread of the syncer once the frames before offset are synced, after
+     * the actions given before. The action must not block, typically it posts a task to a loop.
+     * If a sync fails, the actions waiting are never run.
+     *
+     * @param offset an offset in the log, at most end()
+     * @param action the action to run
+     */
+    public synchronized void whenSynced(long offset, Runnable action) {
+        waiters.add(new Waiter(offset, Objects.requireNonNull(action)));
+        notifyAll();
+    }
+
+    private boolean hasReadyWaiter() {
+        return !waiters.isEmpty() && waiters.peek().offset() <= synced;
+    }
+
+    /**
+     * Sync the segments with a request, oldest first, the frames being forced to disk
+     * outside the lock of the log, and run the actions waiting for the frames synced, outside
+     * the lock too. Runs on the thread syncer until the log is closed.
+     */
+    private void syncLoop() {
+        var ready = new ArrayList<Runnable>();
+        while (true) {
+            Segment segment;
+            MappedByteBuffer map = null;
+            var from = 0;
+            var to = 0;
+            synchronized (this) {
+                while (unsynced.isEmpty() && !hasReadyWaiter() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                while (hasReadyWaiter()) {
+                    ready.add(waiters.poll().action());
+                }
+                segment = unsynced.peek();
+                if (segment == null && ready.isEmpty()) {
+                    return;
+                }
+                if (segment != null) {
+                    map = segment.map;
+                    from = segment.synced;
+                    to = segment.requested;
+                }
+            }
+            ready.forEach(Runnable::run);
+            ready.clear();
+            if (segment == null) {
+                continue;
+            }
+            try {
+                // the frames must be on disk before the header telling they are
+                map.force(HEADER + from, to - from);
+                map.putLong(0, to);
+                map.force(0, HEADER);
+            } catch (UncheckedIOException e) {
+                logger.log(Level.SEVERE, "Could not sync the log", e);
+                synchronized (this) {
+                    failure = e.getCause();
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                segment.synced = to;
+                synced = Math.max(synced, segment.base + to);
+                if (segment.requested == to) {
+                    unsynced.remove(segment);
+                    if (segment.sealed) {
+                        try {
+                            segment.close();
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Could not close a segment of the log", e);
+                        }
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    public SyncPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * @return the offset of the end of the log
+     */
+    public synchronized long end() {
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        var last = segments.get(segments.size() - 1);
+        return last.base + last.size;
+    }
+
+    /**
+     * @param offset an offset in the log
+     * @return the offset of the first frame of the segment containing offset, so the offset of
+     * a frame at or before it, or of the first frame kept if offset is before it
+     */
+    public synchronized long segmentStart(long offset) {
+        var segment = segment(offset);
+        return segment == null ? segments.get(0).base : segment.base;
+    }
+
+    private Segment segment(long offset) {
+        for (var i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).base <= offset) {
+                return segments.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Transfer the bytes of the log from offset from to offset to, at most those of one segment,
+     * directly from the file to target. The file is read with a channel of its own, opened by
+     * the first transfer from the segment and kept until the segment is deleted, whether the
+     * segment is still appended to or not.
+     *
+     * @param from   the offset of the first byte to transfer
+     * @param to     the offset after the last byte to transfer, at most end()
+     * @param target the channel to transfer to, possibly non-blocking
+     * @return the number of bytes transferred, possibly 0
+     * @throws IOException if the transfer fails or the segment of from has been deleted
+     */
+    public long transferTo(long from, long to, WritableByteChannel target) throws IOException {
+        Segment segment;
+        FileChannel reader;
+        synchronized (this) {
+            segment = segment(from);
+            if (segment == null) {
+                throw new IOException("offset " + from + " no longer in the log");
+            }
+            if (segment.reader == null) {
+                segment.reader = FileChannel.open(path(segment.base), StandardOpenOption.READ);
+            }
+            reader = segment.reader;
+        }
+        var count = Math.min(to, segment.base + segment.size) - from;
+        return reader.transferTo(HEADER + from - segment.base, count, target); // positional, the reader is shared
+    }
+
+    /**
+     * Sync the log, stop its syncer and close the files of its segments.
+     *
+     * @throws IOException if the log can not be synced or a file can not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            request(active);
+            closed = true;
+            notifyAll();
+        }
+        var interrupted = false;
+        while (true) {
+            try {
+                syncer.join();
+                break;
+            } catch (InterruptedException e) { // the log must be synced before it is closed
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (var segment : segments) {
+                segment.close();
+                segment.closeReader();
+            }
+            if (failure != null) {
+                throw new IOException("the log could not be synced", failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MessageLogTest {
+
+    private static byte[] readAll(MessageLog log, long from) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var target = Channels.newChannel(bytes);
+        for (var offset = from; offset != log.end(); ) {
+            offset += log.transferTo(offset, log.end(), target);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void rollsSegmentsAndReplaysInOrder() throws IOException {
+        var directory = Files.createTempDirectory("log");
+        try (var log = new MessageLog(directory, 8 + 10, MessageLog.SyncPolicy.MESSAGE, 10)) {
+            assertEquals(4, log.append(ByteBuffer.wrap(new byte[]{1, 1, 1, 1})));
+            assertEquals(8, log.append(ByteBuffer.wrap(new byte[]{2, 2, 2, 2})));
+            assertEquals(12, log.append(ByteBuffer.wrap(new byte[]{3, 3, 3, 3}))); // does not fit in the first segment
+            assertEquals(8, log.segmentStart(10));
+            assertArrayEquals(new byte[]{1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3}, readAll(log, 0));
+        }
+    }
+
+    @Test
+    public void keepsOnlySyncedFramesWhenReopened() throws IOException, InterruptedException {
+        var directory = Files.createTempDirectory("log");
+        var log = new MessageLog(directory, 1_024, MessageLog.SyncPolicy.BATCH, 10);
+        log.append(ByteBuffer.wrap(new byte[]{1, 1, 1, 1}));
+        var synced = new CountDownLatch(1);
+        log.endBatch();
+        log.whenSynced(4, synced::countDown);
+        synced.await();
+        log.append(ByteBuffer.wrap(new byte[]{2, 2, 2, 2})); // never synced, as after a crash
+        try (var reopened = new MessageLog(directory, 1_024, MessageLog.SyncPolicy.BATCH, 10)) {
+            assertEquals(4, reopened.end());
+            assertEquals(8, reopened.append(ByteBuffer.wrap(new byte[]{3, 3, 3, 3})));
+            assertArrayEquals(new byte[]{1, 1, 1, 1, 3, 3, 3, 3}, readAll(reopened, 0));
+        }
+    }
+
+    @Test
+    public void runsActionsOnceSyncedInOrder() throws IOException, InterruptedException {
+        var directory = Files.createTempDirectory("log");
+        var log = new MessageLog(directory, 1_024, MessageLog.SyncPolicy.MESSAGE, 10);
+        var ends = new ArrayList<Long>();
+        var synced = new CountDownLatch(3);
+        for (var i = 1; i <= 3; i++) {
+            var end = log.append(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+            log.whenSynced(end, () -> {
+                ends.add(end); // only by the syncer
+                synced.countDown();
+            });
+        }
+        synced.await();
+        assertEquals(List.of(4L, 8L, 12L), ends);
+        try (var reopened = new MessageLog(directory, 1_024, MessageLog.SyncPolicy.MESSAGE, 10)) {
+            assertEquals(12, reopened.end()); // on disk, although the log was not closed
+        }
+    }
+
+    @Test
+    public void deletesOldestSegments() throws IOException {
+        var directory = Files.createTempDirectory("log");
+        try (var log = new MessageLog(directory, 8 + 4, MessageLog.SyncPolicy.MESSAGE, 2)) {
+            for (var i = 1; i <= 4; i++) {
+                var value = (byte) i;
+                log.append(ByteBuffer.wrap(new byte[]{value, value, value, value}));
+            }
+            try (var files = Files.list(directory)) {
+                assertEquals(2, files.count());
+            }
+            assertEquals(8, log.segmentStart(0));
+            assertArrayEquals(new byte[]{3, 3, 3, 3, 4, 4, 4, 4}, readAll(log, 8));
+            assertThrows(IOException.class, () -> log.transferTo(0, 16, Channels.newChannel(new ByteArrayOutputStream())));
+        }
+    }
+
+    @Test
+    public void reopensSealedSegments() throws IOException {
+        var directory = Files.createTempDirectory("log");
+        try (var log = new MessageLog(directory, 8 + 8, MessageLog.SyncPolicy.PERIODIC, 10)) {
+            log.append(ByteBuffer.wrap(new byte[]{1, 1, 1, 1, 1, 1, 1, 1}));
+            log.append(ByteBuffer.wrap(new byte[]{2, 2, 2, 2})); // seals the first segment, synced before it is closed
+        }
+        try (var reopened = new MessageLog(directory, 8 + 8, MessageLog.SyncPolicy.PERIODIC, 10)) {
+            assertEquals(12, reopened.end());
+            assertEquals(16, reopened.append(ByteBuffer.wrap(new byte[]{3, 3, 3, 3})));
+            assertArrayEquals(new byte[]{1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3}, readAll(reopened, 0));
+        }
+    }
+}
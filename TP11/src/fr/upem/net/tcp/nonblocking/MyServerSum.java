@@ -34,21 +34,18 @@ public class MyServerSum {
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
         while (!Thread.interrupted()) {
-            Helpers.printKeys(selector);
-
-            System.out.println("Starting Select");
-
             try {
-                selector.select(this::treatKey);
+                Trace.record(Trace.Event.SELECT, -1);
+                var selected = selector.select(this::treatKey);
+                Trace.record(Trace.Event.SELECTED, selected);
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
-            System.out.println("Select Finished");
         }
     }
 
     public void treatKey(SelectionKey key) {
-        Helpers.printSelectedKey(key);
+        Trace.recordKey(key);
 
         try {
             if (key.isValid() && key.isAcceptable()) {
@@ -120,7 +117,9 @@ public class MyServerSum {
         }
 
         private void doRead() throws IOException {
-            if (sc.read(buffer) == -1) {
+            var read = sc.read(buffer);
+            Trace.record(Trace.Event.READ, sc, read);
+            if (read == -1) {
                 logger.info("Connection closed by " + sc.getRemoteAddress());
                 closed = true;
             }
@@ -133,7 +132,8 @@ public class MyServerSum {
                 silentlyClose();
                 return;
             }
-            sc.write(buffer);
+            var written = sc.write(buffer);
+            Trace.record(Trace.Event.WRITE, sc, written);
             buffer.compact();
             updateInterestOps();
         }
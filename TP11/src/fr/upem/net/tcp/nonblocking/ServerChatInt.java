@@ -6,35 +6,90 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerChatInt {
-    private class Context {
+    private class Context implements SessionRegistry.Session {
         private final SelectionKey key;
         private final SocketChannel sc;
-        private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
-        private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
+        private final LeasedBuffer in = new LeasedBuffer(BUFFER_POOL); // bufferIn, only leased while bytes are in flight
+        private final LeasedBuffer out = new LeasedBuffer(BUFFER_POOL); // bufferOut, only leased while bytes are in flight
         private final ArrayDeque<Integer> queue = new ArrayDeque<>();
         private boolean closed = false;
+        private boolean released = false;
+        private boolean backlogged = false; // integers left in bufferIn once the frame budget was spent
+        private int registryIndex = -1;
+        private final TimingWheel.Timer idleTimer = timeouts.newTimer(this::closeIdle);
 
         private Context(SelectionKey key) {
             this.key = key;
             this.sc = (SocketChannel) key.channel();
+            touch();
         }
 
         /**
-         * Process the content of bufferIn
+         * Push back the idle timeout of the connection, in O(1).
+         */
+        private void touch() {
+            if (idleTimeout > 0) {
+                timeouts.schedule(idleTimer, now() + idleTimeout);
+            }
+        }
+
+        private void closeIdle() {
+            logger.info("Closing connection idle for " + idleTimeout + " ms");
+            silentlyClose();
+        }
+
+        @Override
+        public int registryIndex() {
+            return registryIndex;
+        }
+
+        @Override
+        public void setRegistryIndex(int index) {
+            registryIndex = index;
+        }
+
+        /**
+         * Process the content of bufferIn, at most frameBudget integers. If integers are left,
+         * the context is put in the ready list and stops reading until they have been processed.
+         * <p>
+         * Once everything has been processed, bufferIn goes back to the pool, with a copy of the
+         * bytes of an incomplete integer if any.
          * <p>
          * The convention is that bufferIn is in write-mode before the call to process and
          * after the call
          */
         private void processIn() {
+            var bufferIn = in.acquire();
             bufferIn.flip();
-            while (bufferIn.remaining() >= Integer.BYTES) {
+            for (var frames = 0; bufferIn.remaining() >= Integer.BYTES; frames++) {
+                if (frames == frameBudget) {
+                    backlogged = true;
+                    ready.add(this);
+                    break;
+                }
                 broadcast(bufferIn.getInt());
             }
             bufferIn.compact();
+            if (!backlogged) {
+                in.release();
+            }
+        }
+
+        /**
+         * Process the integers left in bufferIn by the previous iteration.
+         */
+        private void serve() {
+            if (released) {
+                return;
+            }
+            backlogged = false;
+            processIn();
+            updateInterestOps();
         }
 
         /**
@@ -43,6 +98,9 @@ public class ServerChatInt {
          * @param msg the message to add
          */
         public void queueMessage(Integer msg) {
+            if (released) {
+                return;
+            }
             queue.offer(msg);
             processOut();
             updateInterestOps();
@@ -52,6 +110,10 @@ public class ServerChatInt {
          * Try to fill bufferOut from the message queue
          */
         private void processOut() {
+            if (queue.isEmpty()) {
+                return;
+            }
+            var bufferOut = out.acquire();
             while (!queue.isEmpty() && bufferOut.remaining() >= Integer.BYTES) {
                 bufferOut.putInt(queue.poll());
             }
@@ -66,31 +128,47 @@ public class ServerChatInt {
          * been be called just before updateInterestOps.
          */
         private void updateInterestOps() {
+            if (released) {
+                return;
+            }
             int interestOps = 0;
-            if (!closed && bufferIn.hasRemaining()) {
+            if (!closed && !backlogged && in.hasRemaining()) {
                 interestOps |= SelectionKey.OP_READ;
             }
-            if (bufferOut.position() != 0) {
+            if (!out.isEmpty()) {
                 interestOps |= SelectionKey.OP_WRITE;
             }
 
-            if (interestOps == 0) {
+            if (interestOps == 0 && !backlogged) {
                 silentlyClose();
                 return;
             }
             key.interestOps(interestOps);
         }
 
+        /**
+         * Close sc and give back both buffers to the pool. Nothing must be done with the
+         * context afterwards.
+         */
         private void silentlyClose() {
             try {
                 sc.close();
             } catch (IOException e) {
                 // ignore exception
             }
+            if (!released) {
+                released = true;
+                Trace.record(Trace.Event.CLOSE, sc, 0);
+                sessions.remove(this);
+                timeouts.cancel(idleTimer);
+                queue.clear();
+                in.discard();
+                out.discard();
+            }
         }
 
         /**
-         * Performs the read action on sc
+         * Performs the read action on sc, reading at most readBudget bytes
          * <p>
          * The convention is that both buffers are in write-mode before the call to
          * doRead and after the call
@@ -98,10 +176,21 @@ public class ServerChatInt {
          * @throws IOException if the read fails
          */
         private void doRead() throws IOException {
-            if (sc.read(bufferIn) == -1) {
+            var bufferIn = in.acquire();
+            var limit = bufferIn.limit();
+            bufferIn.limit(Math.min(limit, bufferIn.position() + readBudget));
+            int read;
+            try {
+                read = sc.read(bufferIn);
+            } finally {
+                bufferIn.limit(limit);
+            }
+            Trace.record(Trace.Event.READ, sc, read);
+            if (read == -1) {
                 logger.info("Connection closed by " + sc.getRemoteAddress());
                 closed = true;
             }
+            touch();
             processIn();
             updateInterestOps();
         }
@@ -116,44 +205,168 @@ public class ServerChatInt {
          */
 
         private void doWrite() throws IOException {
+            var bufferOut = out.acquire();
             bufferOut.flip();
-            sc.write(bufferOut);
+            var written = sc.write(bufferOut);
+            Trace.record(Trace.Event.WRITE, sc, written);
+            touch();
             bufferOut.compact();
             processOut();
+            if (out.isEmpty()) {
+                out.release();
+            }
             updateInterestOps();
         }
 
     }
 
     private static final int BUFFER_SIZE = 1_024;
+    private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE);
     private static final Logger logger = Logger.getLogger(ServerChatInt.class.getName());
+    private static final long TIMEOUT_TICK = 100;
+    private static final int TIMEOUT_SLOTS = 512;
+    private static final int ACCEPT_BATCH = 16;
 
+    private final int port;
     private final ServerSocketChannel serverSocketChannel;
     private final Selector selector;
+    private long now = clock(); // refreshed at most once per select, saves a call per read or write
+    private boolean nowStale = false;
+    private final TimingWheel timeouts = new TimingWheel(TIMEOUT_TICK, TIMEOUT_SLOTS, now);
+    private long idleTimeout = 0;
+    private final SessionRegistry<Context> sessions = new SessionRegistry<>();
+    private final ArrayList<Context> ready = new ArrayList<>(); // contexts that spent their frame budget
+    private int readBudget = BUFFER_SIZE;
+    private int frameBudget = 32;
+    private AcceptLimiter limiter = new AcceptLimiter(ACCEPT_BATCH, 0, 1, clock());
+    private int acceptBacklog = 0;
 
     public ServerChatInt(int port) throws IOException {
+        this.port = port;
         serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
         selector = Selector.open();
     }
 
+    /**
+     * Close the connections on which nothing has been read or written for idleTimeout milliseconds.
+     * Must be called before launch.
+     *
+     * @param idleTimeout the timeout in milliseconds, 0 to disable it
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("idleTimeout must not be negative");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Bound the work done for one client in one iteration of the selector loop, so that a
+     * client flooding the server does not delay the others. Must be called before launch.
+     * <p>
+     * At most readBudget bytes are read from a client per iteration, and at most frameBudget
+     * of its integers are broadcast. The integers left are broadcast at the next iteration,
+     * which does not block in select, and nothing more is read from the client meanwhile.
+     *
+     * @param readBudget  the maximum number of bytes read per client and per iteration
+     * @param frameBudget the maximum number of integers processed per client and per iteration
+     */
+    public void setBudget(int readBudget, int frameBudget) {
+        if (readBudget <= 0 || frameBudget <= 0) {
+            throw new IllegalArgumentException("budgets must be positive");
+        }
+        this.readBudget = readBudget;
+        this.frameBudget = frameBudget;
+    }
+
+    /**
+     * Bound the rate at which new connections are admitted. Must be called before launch.
+     * <p>
+     * At most batch connections are accepted per wakeup. The connections beyond ratePerSecond,
+     * with bursts of at most burst connections, wait until they can be admitted; when burst
+     * connections are already waiting, the new ones are closed at once.
+     *
+     * @param batch         the maximum number of connections accepted per wakeup
+     * @param backlog       the length of the listen backlog, 0 for the default of the system
+     * @param ratePerSecond the number of connections admitted per second, 0 for no limit
+     * @param burst         the maximum number of connections admitted at once, or waiting
+     */
+    public void setAcceptLimits(int batch, int backlog, double ratePerSecond, int burst) {
+        if (backlog < 0) {
+            throw new IllegalArgumentException("backlog must not be negative");
+        }
+        limiter = new AcceptLimiter(batch, ratePerSecond, burst, clock());
+        acceptBacklog = backlog;
+    }
+
+    /**
+     * @return the number of connections admitted
+     */
+    public long acceptedCount() {
+        return limiter.acceptedCount();
+    }
+
+    /**
+     * @return the number of connections that waited before being admitted
+     */
+    public long deferredCount() {
+        return limiter.deferredCount();
+    }
+
+    /**
+     * @return the number of connections closed because too many were waiting to be admitted
+     */
+    public long rejectedCount() {
+        return limiter.rejectedCount();
+    }
+
     public void launch() throws IOException {
+        serverSocketChannel.bind(new InetSocketAddress(port), acceptBacklog);
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         while (!Thread.interrupted()) {
-            Helpers.printKeys(selector); // for debug
-            System.out.println("Starting select");
+            var backlog = ready.size();
             try {
-                selector.select(this::treatKey);
+                var timeout = backlog == 0 ? timeout() : 0; // the ready list must not wait
+                nowStale = true; // the select may block
+                Trace.record(Trace.Event.SELECT, timeout);
+                var selected = timeout == 0
+                        ? selector.selectNow(this::treatKey)
+                        : selector.select(this::treatKey, Math.max(timeout, 0));
+                Trace.record(Trace.Event.SELECTED, selected);
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
-            System.out.println("Select finished");
+            timeouts.expire(now());
+            limiter.admitDeferred(now(), this::register);
+            serveReady(backlog);
         }
     }
 
+    /**
+     * @return the time until the next idle timeout or the next deferred admission, -1 if none
+     */
+    private long timeout() {
+        var timeout = timeouts.timeout(now());
+        var admission = limiter.timeout(now());
+        return timeout < 0 || (admission >= 0 && admission < timeout) ? admission : timeout;
+    }
+
+    /**
+     * Give a new frame budget to the first count contexts of the ready list, the ones
+     * queued by the previous iteration. Those still backlogged go back at the end.
+     *
+     * @param count the number of contexts to serve
+     */
+    private void serveReady(int count) {
+        for (var i = 0; i < count; i++) {
+            ready.get(i).serve();
+        }
+        ready.subList(0, count).clear();
+    }
+
     private void treatKey(SelectionKey key) {
-        Helpers.printSelectedKey(key); // for debug
+        Trace.recordKey(key);
         try {
             if (key.isValid() && key.isAcceptable()) {
                 doAccept();
@@ -171,27 +384,30 @@ public class ServerChatInt {
             }
         } catch (IOException e) {
             logger.log(Level.INFO, "Connection closed with client due to IOException");
-            silentlyClose(key);
+            ((Context) key.attachment()).silentlyClose();
         }
     }
 
     private void doAccept() throws IOException {
-        var client = serverSocketChannel.accept();
-        if (client == null) {
-            logger.warning("accept() returned null");
-            return;
-        }
-        client.configureBlocking(false);
-        var skey = client.register(selector, SelectionKey.OP_READ);
-        skey.attach(new Context(skey));
+        // accepting up to a batch of clients, those over the rate wait in the limiter
+        limiter.acceptAll(serverSocketChannel, now(), this::register);
     }
 
-    private void silentlyClose(SelectionKey key) {
-        Channel sc = key.channel();
+    private void register(SocketChannel client) {
         try {
-            sc.close();
+            client.configureBlocking(false);
+            var skey = client.register(selector, SelectionKey.OP_READ);
+            var context = new Context(skey);
+            skey.attach(context);
+            sessions.add(context);
+            Trace.record(Trace.Event.ACCEPT, client, 0);
         } catch (IOException e) {
-            // ignore exception
+            logger.log(Level.INFO, "Could not register client", e);
+            try {
+                client.close();
+            } catch (IOException e2) {
+                // ignore exception
+            }
         }
     }
 
@@ -201,22 +417,34 @@ public class ServerChatInt {
      * @param msg the message to add
      */
     private void broadcast(Integer msg) {
-        selector.keys().forEach(key -> {
-            if (key.channel() == serverSocketChannel) return;
-            var ctx = (Context) key.attachment();
-            ctx.queueMessage(msg);
-        });
+        sessions.forEach(ctx -> ctx.queueMessage(msg));
+    }
+
+    private long now() {
+        if (nowStale) {
+            now = clock();
+            nowStale = false;
+        }
+        return now;
+    }
+
+    private static long clock() {
+        return System.nanoTime() / 1_000_000;
     }
 
     public static void main(String[] args) throws NumberFormatException, IOException {
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             usage();
             return;
         }
-        new ServerChatInt(Integer.parseInt(args[0])).launch();
+        var server = new ServerChatInt(Integer.parseInt(args[0]));
+        if (args.length == 2) {
+            server.setIdleTimeout(Long.parseLong(args[1]));
+        }
+        server.launch();
     }
 
     private static void usage() {
-        System.out.println("Usage : ServerSumBetter port");
+        System.out.println("Usage : ServerChatInt port [idleTimeoutMillis]");
     }
 }
\ No newline at end of file
@@ -8,15 +8,32 @@ import java.nio.channels.*;
 import java.util.logging.Logger;
 
 public class ServerEcho {
-    static private class Context {
+    private class Context {
         private final SelectionKey key;
         private final SocketChannel sc;
-        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer buffer = BUFFER_POOL.acquire();
         private boolean closed = false;
+        private boolean released = false;
+        private final TimingWheel.Timer idleTimer = timeouts.newTimer(this::closeIdle);
 
         private Context(SelectionKey key) {
             this.key = key;
             this.sc = (SocketChannel) key.channel();
+            touch();
+        }
+
+        /**
+         * Push back the idle timeout of the connection, in O(1).
+         */
+        private void touch() {
+            if (idleTimeout > 0) {
+                timeouts.schedule(idleTimer, now() + idleTimeout);
+            }
+        }
+
+        private void closeIdle() {
+            logger.info("Closing connection idle for " + idleTimeout + " ms");
+            silentlyClose();
         }
 
         /**
@@ -45,10 +62,12 @@ public class ServerEcho {
          */
         private void doRead() throws IOException {
             var n = sc.read(buffer);
+            Trace.record(Trace.Event.READ, sc, n);
             if (n == -1) {
                 logger.info("Connection closed by " + sc.getRemoteAddress());
                 closed = true;
             }
+            touch();
             updateInterestOps();
         }
 
@@ -66,25 +85,44 @@ public class ServerEcho {
                 silentlyClose();
                 return;
             }
-            sc.write(buffer);
+            var written = sc.write(buffer);
+            Trace.record(Trace.Event.WRITE, sc, written);
+            touch();
             buffer.compact();
             updateInterestOps();
         }
 
+        /**
+         * Close sc and give back the buffer to the pool. Nothing must be done with the
+         * context afterwards.
+         */
         private void silentlyClose() {
             try {
                 sc.close();
             } catch (IOException e) {
                 // ignore exception
             }
+            if (!released) {
+                released = true;
+                Trace.record(Trace.Event.CLOSE, sc, 0);
+                timeouts.cancel(idleTimer);
+                BUFFER_POOL.release(buffer);
+            }
         }
     }
 
     private static final int BUFFER_SIZE = 1_024;
+    private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE);
     private static final Logger logger = Logger.getLogger(ServerEcho.class.getName());
+    private static final long TIMEOUT_TICK = 100;
+    private static final int TIMEOUT_SLOTS = 512;
 
     private final ServerSocketChannel serverSocketChannel;
     private final Selector selector;
+    private long now = clock(); // refreshed at most once per select, saves a call per read or write
+    private boolean nowStale = false;
+    private final TimingWheel timeouts = new TimingWheel(TIMEOUT_TICK, TIMEOUT_SLOTS, now);
+    private long idleTimeout = 0;
 
     public ServerEcho(int port) throws IOException {
         serverSocketChannel = ServerSocketChannel.open();
@@ -92,23 +130,40 @@ public class ServerEcho {
         selector = Selector.open();
     }
 
+    /**
+     * Close the connections on which nothing has been read or written for idleTimeout milliseconds.
+     * Must be called before launch.
+     *
+     * @param idleTimeout the timeout in milliseconds, 0 to disable it
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("idleTimeout must not be negative");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
     public void launch() throws IOException {
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         while (!Thread.interrupted()) {
-            Helpers.printKeys(selector); // for debug
-            System.out.println("Starting select");
             try {
-                selector.select(this::treatKey);
+                var timeout = timeouts.timeout(now());
+                nowStale = true; // the select may block
+                Trace.record(Trace.Event.SELECT, timeout);
+                var selected = timeout == 0
+                        ? selector.selectNow(this::treatKey)
+                        : selector.select(this::treatKey, Math.max(timeout, 0));
+                Trace.record(Trace.Event.SELECTED, selected);
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
-            System.out.println("Select finished");
+            timeouts.expire(now());
         }
     }
 
     private void treatKey(SelectionKey key) {
-        Helpers.printSelectedKey(key); // for debug
+        Trace.recordKey(key);
         try {
             if (key.isValid() && key.isAcceptable()) {
                 doAccept(key);
@@ -126,7 +181,7 @@ public class ServerEcho {
             }
         } catch (IOException e) {
             logger.info("Connection closed with client due to IOException");
-            silentlyClose(key);
+            ((Context) key.attachment()).silentlyClose();
         }
     }
 
@@ -140,26 +195,34 @@ public class ServerEcho {
         client.configureBlocking(false);
         var skey = client.register(selector, SelectionKey.OP_READ);
         skey.attach(new Context(skey));
+        Trace.record(Trace.Event.ACCEPT, client, 0);
     }
 
-    private void silentlyClose(SelectionKey key) {
-        var sc = (Channel) key.channel();
-        try {
-            sc.close();
-        } catch (IOException e) {
-            // ignore exception
+    private long now() {
+        if (nowStale) {
+            now = clock();
+            nowStale = false;
         }
+        return now;
+    }
+
+    private static long clock() {
+        return System.nanoTime() / 1_000_000;
     }
 
     public static void main(String[] args) throws NumberFormatException, IOException {
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             usage();
             return;
         }
-        new ServerEcho(Integer.parseInt(args[0])).launch();
+        var server = new ServerEcho(Integer.parseInt(args[0]));
+        if (args.length == 2) {
+            server.setIdleTimeout(Long.parseLong(args[1]));
+        }
+        server.launch();
     }
 
     private static void usage() {
-        System.out.println("Usage : ServerEcho port");
+        System.out.println("Usage : ServerEcho port [idleTimeoutMillis]");
     }
 }
\ No newline at end of file
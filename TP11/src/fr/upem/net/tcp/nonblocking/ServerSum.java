@@ -11,37 +11,112 @@ import java.util.logging.Logger;
 public class ServerSum {
 
     private static final int BUFFER_SIZE = 2 * Integer.BYTES;
+    private static final int WORKER_QUEUE_PER_THREAD = 64;
+    private static final int ACCEPT_BATCH = 16;
     private static final Logger logger = Logger.getLogger(ServerSumOneShot.class.getName());
 
+    private final int port;
     private final ServerSocketChannel serverSocketChannel;
     private final Selector selector;
+    private final TaskQueue tasks;
+    private WorkerPool workers; // null when the sums are computed by the selector thread
+    private AcceptLimiter limiter = new AcceptLimiter(ACCEPT_BATCH, 0, 1, clock());
+    private int acceptBacklog = 0;
 
     private final ByteBuffer senderBuffer = ByteBuffer.allocate(Integer.BYTES);
 
     public ServerSum(int port) throws IOException {
+        this.port = port;
         serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
         selector = Selector.open();
+        tasks = new TaskQueue(selector);
+    }
+
+    /**
+     * Compute the sums on a pool of worker threads instead of the selector thread.
+     * Must be called before launch.
+     * <p>
+     * Nothing is read from a client while its sum is being computed: the result is
+     * written back by the selector thread before the next request of the client is read.
+     *
+     * @param nbWorkers     the number of worker threads
+     * @param queueCapacity the maximum number of sums waiting for a worker
+     */
+    public void setWorkers(int nbWorkers, int queueCapacity) {
+        workers = new WorkerPool(nbWorkers, queueCapacity);
+    }
+
+    /**
+     * @return the number of sums waiting for a worker, 0 without workers
+     */
+    public int workerQueueDepth() {
+        return workers == null ? 0 : workers.queueDepth();
+    }
+
+    /**
+     * Bound the rate at which new connections are admitted. Must be called before launch.
+     * <p>
+     * At most batch connections are accepted per wakeup. The connections beyond ratePerSecond,
+     * with bursts of at most burst connections, wait until they can be admitted; when burst
+     * connections are already waiting, the new ones are closed at once.
+     *
+     * @param batch         the maximum number of connections accepted per wakeup
+     * @param backlog       the length of the listen backlog, 0 for the default of the system
+     * @param ratePerSecond the number of connections admitted per second, 0 for no limit
+     * @param burst         the maximum number of connections admitted at once, or waiting
+     */
+    public void setAcceptLimits(int batch, int backlog, double ratePerSecond, int burst) {
+        if (backlog < 0) {
+            throw new IllegalArgumentException("backlog must not be negative");
+        }
+        limiter = new AcceptLimiter(batch, ratePerSecond, burst, clock());
+        acceptBacklog = backlog;
+    }
+
+    /**
+     * @return the number of connections admitted
+     */
+    public long acceptedCount() {
+        return limiter.acceptedCount();
+    }
+
+    /**
+     * @return the number of connections that waited before being admitted
+     */
+    public long deferredCount() {
+        return limiter.deferredCount();
+    }
+
+    /**
+     * @return the number of connections closed because too many were waiting to be admitted
+     */
+    public long rejectedCount() {
+        return limiter.rejectedCount();
     }
 
     public void launch() throws IOException {
+        serverSocketChannel.bind(new InetSocketAddress(port), acceptBacklog);
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         while (!Thread.interrupted()) {
-            Helpers.printKeys(selector); // for debug
-            System.out.println("Starting select");
             try {
-                selector.select(this::treatKey);
+                var timeout = limiter.timeout(clock());
+                Trace.record(Trace.Event.SELECT, timeout);
+                var selected = timeout == 0
+                        ? selector.selectNow(this::treatKey)
+                        : selector.select(this::treatKey, Math.max(timeout, 0));
+                Trace.record(Trace.Event.SELECTED, selected);
+                tasks.runAll();
+                limiter.admitDeferred(clock(), this::register);
             } catch (UncheckedIOException tunneled) {
                 logger.log(Level.SEVERE, "your network card is frying", tunneled);
                 return;
             }
-            System.out.println("Select finished");
         }
     }
 
     private void treatKey(SelectionKey key) {
-        Helpers.printSelectedKey(key); // for debug
+        Trace.recordKey(key);
         try {
             if (key.isValid() && key.isAcceptable()) {
                 doAccept(key);
@@ -67,25 +142,29 @@ public class ServerSum {
     }
 
     private void doAccept(SelectionKey key) throws IOException {
-        // TODO
         //getting the server socket channel
         ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
 
-        //getting socket channel
-        var sc = ssc.accept();
-
-        //do nothing if sc is null, le selector a manti
-        if (sc == null) {
-            logger.warning("accept() returned null");
-            return;
-        }
-
-        //setting non blocking mode
-        sc.configureBlocking(false);
+        //accepting up to a batch of clients, those over the rate wait in the limiter
+        limiter.acceptAll(ssc, clock(), this::register);
+    }
 
-        //register its key to read
-        sc.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(BUFFER_SIZE));
+    private void register(SocketChannel sc) {
+        try {
+            //setting non blocking mode
+            sc.configureBlocking(false);
 
+            //register its key to read
+            sc.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(BUFFER_SIZE));
+            Trace.record(Trace.Event.ACCEPT, sc, 0);
+        } catch (IOException e) {
+            logger.warning("### Could not register the client, closing connection with the client");
+            try {
+                sc.close();
+            } catch (IOException e2) {
+                // ignore exception
+            }
+        }
     }
 
     private void doRead(SelectionKey key) throws IOException {
@@ -97,7 +176,9 @@ public class ServerSum {
         var buffer = (ByteBuffer) key.attachment();
 
 
-        if (sc.read(buffer) == -1) {
+        var read = sc.read(buffer);
+        Trace.record(Trace.Event.READ, sc, read);
+        if (read == -1) {
             logger.warning("### Protocol Not respected closing client connection");
             silentlyClose(key);
             return;
@@ -112,13 +193,31 @@ public class ServerSum {
         var one = buffer.getInt();
         var two = buffer.getInt();
 
-        logger.info("==> Received ::: " + one + " , " + two);
 
 
-        //should prepare the sending buffer
-        buffer.clear().putInt(one + two);
+        if (workers == null) {
+            //should prepare the sending buffer
+            buffer.clear().putInt(sum(one, two));
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        key.interestOps(0); // no read until the sum is sent, so the answers stay in order
+        workers.submit(() -> sum(one, two), tasks, (sum, error) -> {
+            if (!key.isValid()) {
+                return;
+            }
+            if (error != null) {
+                logger.log(Level.WARNING, "### Sum failed, closing connection with the client", error);
+                silentlyClose(key);
+                return;
+            }
+            buffer.clear().putInt(sum);
+            key.interestOps(SelectionKey.OP_WRITE);
+        });
+    }
 
-        key.interestOps(SelectionKey.OP_WRITE);
+    private static int sum(int one, int two) {
+        return one + two;
     }
 
     private void doWrite(SelectionKey key) throws IOException {
@@ -128,8 +227,8 @@ public class ServerSum {
         var buffer = (ByteBuffer) key.attachment();
 
         buffer.flip();
-        logger.info("<== sending response");
-        sc.write(buffer);
+        var written = sc.write(buffer);
+        Trace.record(Trace.Event.WRITE, sc, written);
 
         if (buffer.remaining() > Integer.BYTES) {
             logger.warning("###Writing error");
@@ -137,7 +236,6 @@ public class ServerSum {
             return;
         }
         buffer.clear();
-        logger.info("Writing successful");
         //silentlyClose(key);
         key.interestOps(SelectionKey.OP_READ);
 
@@ -152,15 +250,24 @@ public class ServerSum {
         }
     }
 
+    private static long clock() {
+        return System.nanoTime() / 1_000_000;
+    }
+
     public static void main(String[] args) throws NumberFormatException, IOException {
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             usage();
             return;
         }
-        new ServerSum(Integer.parseInt(args[0])).launch();
+        var server = new ServerSum(Integer.parseInt(args[0]));
+        if (args.length == 2) {
+            var nbWorkers = Integer.parseInt(args[1]);
+            server.setWorkers(nbWorkers, nbWorkers * WORKER_QUEUE_PER_THREAD);
+        }
+        server.launch();
     }
 
     private static void usage() {
-        System.out.println("Usage : ServerSumOneShot port");
+        System.out.println("Usage : ServerSum port [nbWorkers]");
     }
 }
@@ -0,0 +1,92 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TaskQueueTest {
+
+    @Test
+    public void runsTasksInPostOrder() throws IOException {
+        try (var selector = Selector.open()) {
+            var tasks = new TaskQueue(selector);
+            var ran = new ArrayList<Integer>();
+            for (var i = 0; i < 5; i++) {
+                var value = i;
+                tasks.post(() -> ran.add(value));
+            }
+            assertEquals(5, tasks.runAll());
+            assertEquals(List.of(0, 1, 2, 3, 4), ran);
+            assertEquals(0, tasks.runAll());
+        }
+    }
+
+    @Test
+    public void runUntilLeavesTheOtherTasksForTheNextCall() throws IOException {
+        try (var selector = Selector.open()) {
+            var tasks = new TaskQueue(selector);
+            var ran = new ArrayList<Integer>();
+            for (var i = 0; i < 5; i++) {
+                var value = i;
+                tasks.post(() -> ran.add(value));
+            }
+            assertEquals(2, tasks.runUntil(() -> ran.size() == 2));
+            assertTrue(tasks.hasTasks());
+            assertEquals(1, tasks.runUntil(() -> true)); // one task at least
+            assertEquals(2, tasks.runAll());
+            assertFalse(tasks.hasTasks());
+            assertEquals(List.of(0, 1, 2, 3, 4), ran);
+        }
+    }
+
+    @Test
+    public void postWakesUpBlockedSelect() throws Exception {
+        var producers = 4;
+        var perProducer = 20_000;
+        try (var selector = Selector.open()) {
+            var tasks = new TaskQueue(selector);
+            var last = new int[producers];
+            var count = new int[1];
+            var consumer = new Thread(() -> {
+                try {
+                    while (count[0] < producers * perProducer) {
+                        selector.select(); // blocks forever if a wakeup is lost
+                        tasks.runAll();
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            consumer.setDaemon(true);
+            consumer.start();
+            var threads = new ArrayList<Thread>();
+            for (var p = 0; p < producers; p++) {
+                var producer = p;
+                threads.add(new Thread(() -> {
+                    for (var i = 1; i <= perProducer; i++) {
+                        var value = i;
+                        tasks.post(() -> {
+                            assertEquals(last[producer] + 1, value);
+                            last[producer] = value;
+                            count[0]++;
+                        });
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (var thread : threads) {
+                thread.join();
+            }
+            consumer.join(10_000);
+            assertFalse(consumer.isAlive());
+            assertEquals(producers * perProducer, count[0]);
+        }
+    }
+}
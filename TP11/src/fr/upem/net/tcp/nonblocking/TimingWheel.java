@@ -0,0 +1,176 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Hashed timing wheel used by an event loop to expire timers, typically idle timeouts.
+ * <p>
+ * Time is cut in ticks of tickMillis milliseconds and a timer is stored in the slot of the tick
+ * of its deadline, modulo the number of slots. Scheduling, rescheduling and cancelling a timer
+ * are O(1). Pushing back the deadline of a scheduled timer, which is what happens on each activity
+ * of a connection, only updates a field: the timer is moved to its new slot when its old slot is
+ * expired.
+ * <p>
+ * A timer fires at most one tick after its deadline. All the times are in milliseconds and given
+ * by the caller, from a monotonic clock.
+ * <p>
+ * This class is not thread-safe, a wheel belongs to one event loop.
+ */
+public class TimingWheel {
+    public static final class Timer {
+        private final Runnable action;
+        private long deadline;
+        private int slot = -1;
+        private Timer prev;
+        private Timer next;
+
+        private Timer(Runnable action) {
+            this.action = action;
+        }
+
+        public boolean isScheduled() {
+            return slot != -1;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer[] slots;
+    private final int mask;
+    private final ArrayList<Timer> pushedBack = new ArrayList<>();
+    private long cursor; // first tick not yet expired
+    private int size = 0;
+
+    /**
+     * @param tickMillis the duration of a tick
+     * @param nbSlots    the number of slots, rounded up to a power of 2
+     * @param now        the current time
+     */
+    public TimingWheel(long tickMillis, int nbSlots, long now) {
+        if (tickMillis <= 0 || nbSlots <= 0) {
+            throw new IllegalArgumentException("invalid wheel " + tickMillis + "/" + nbSlots);
+        }
+        this.tickMillis = tickMillis;
+        var length = Integer.highestOneBit(nbSlots);
+        if (length < nbSlots) {
+            length <<= 1;
+        }
+        this.slots = new Timer[length];
+        this.mask = length - 1;
+        this.cursor = now / tickMillis;
+    }
+
+    /**
+     * Creates a timer, not scheduled, running action when it expires.
+     *
+     * @param action the action to run on the thread calling expire
+     * @return the new timer
+     */
+    public Timer newTimer(Runnable action) {
+        return new Timer(Objects.requireNonNull(action));
+    }
+
+    /**
+     * Schedule or reschedule a timer.
+     *
+     * @param timer    the timer
+     * @param deadline the time at which the timer expires
+     */
+    public void schedule(Timer timer, long deadline) {
+        if (timer.isScheduled()) {
+            if (deadline >= timer.deadline) {
+                timer.deadline = deadline; // moved lazily by expire
+                return;
+            }
+            unlink(timer);
+        }
+        timer.deadline = deadline;
+        link(timer);
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the time to wait before the next call to expire may have something to do.
+     *
+     * @param now the current time
+     * @return -1 if no timer is scheduled, 0 if expire must be called now, or a number of milliseconds
+     */
+    public long timeout(long now) {
+        if (size == 0) {
+            return -1;
+        }
+        for (var tick = cursor; tick < cursor + slots.length; tick++) {
+            if (slots[(int) (tick & mask)] != null) {
+                return Math.max(0, (tick + 1) * tickMillis - now);
+            }
+        }
+        throw new AssertionError("size is " + size + " but all slots are empty");
+    }
+
+    /**
+     * Run the action of all the timers whose deadline is before now.
+     *
+     * @param now the current time
+     */
+    public void expire(long now) {
+        var last = now / tickMillis; // tick in progress, not expired yet
+        var end = Math.min(last, cursor + slots.length);
+        for (; cursor < end; cursor++) {
+            var index = (int) (cursor & mask);
+            Timer timer;
+            while ((timer = slots[index]) != null) {
+                unlink(timer);
+                if (timer.deadline <= now) {
+                    timer.action.run(); // may schedule or cancel any timer
+                } else {
+                    pushedBack.add(timer);
+                }
+            }
+            for (var pushed : pushedBack) {
+                if (!pushed.isScheduled()) {
+                    link(pushed);
+                }
+            }
+            pushedBack.clear();
+        }
+        cursor = last;
+    }
+
+    private void link(Timer timer) {
+        var tick = Math.max(timer.deadline / tickMillis, cursor);
+        var index = (int) (tick & mask);
+        var head = slots[index];
+        timer.slot = index;
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[index] = timer;
+        size++;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.slot = -1;
+        timer.prev = null;
+        timer.next = null;
+        size--;
+    }
+}
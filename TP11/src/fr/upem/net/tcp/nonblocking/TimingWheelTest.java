@@ -0,0 +1,70 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimingWheelTest {
+
+    @Test
+    public void expiresAfterDeadline() {
+        var wheel = new TimingWheel(10, 8, 0);
+        var fired = new ArrayList<String>();
+        var timer = wheel.newTimer(() -> fired.add("a"));
+        wheel.schedule(timer, 25);
+        assertEquals(30, wheel.timeout(0));
+        wheel.expire(29);
+        assertTrue(fired.isEmpty());
+        wheel.expire(30);
+        assertEquals(1, fired.size());
+        assertFalse(timer.isScheduled());
+        assertEquals(-1, wheel.timeout(30));
+    }
+
+    @Test
+    public void pushedBackTimerDoesNotFireEarly() {
+        var wheel = new TimingWheel(10, 8, 0);
+        var fired = new ArrayList<Long>();
+        var now = new long[1];
+        var timer = wheel.newTimer(() -> fired.add(now[0]));
+        wheel.schedule(timer, 20);
+        wheel.schedule(timer, 200); // more than one rotation later
+        for (now[0] = 0; now[0] <= 300; now[0] += 5) {
+            wheel.expire(now[0]);
+        }
+        assertEquals(1, fired.size());
+        assertTrue(fired.get(0) >= 200 && fired.get(0) <= 210);
+    }
+
+    @Test
+    public void cancelledTimerNeverFires() {
+        var wheel = new TimingWheel(10, 8, 0);
+        var fired = new ArrayList<String>();
+        var timer = wheel.newTimer(() -> fired.add("a"));
+        wheel.schedule(timer, 15);
+        wheel.cancel(timer);
+        assertEquals(0, wheel.size());
+        wheel.expire(1_000);
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void actionMayCancelAnotherTimerOfTheSameSlot() {
+        var wheel = new TimingWheel(10, 8, 0);
+        var fired = new ArrayList<String>();
+        var second = wheel.newTimer(() -> fired.add("second"));
+        var first = wheel.newTimer(() -> {
+            fired.add("first");
+            wheel.cancel(second);
+        });
+        wheel.schedule(second, 12);
+        wheel.schedule(first, 11); // head of the slot, expired first
+        wheel.expire(20);
+        assertEquals(1, fired.size());
+        assertEquals(0, wheel.size());
+    }
+}
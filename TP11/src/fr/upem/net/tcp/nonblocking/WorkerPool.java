@@ -0,0 +1,158 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded pool of worker threads for the work too long to be done on the thread of a
+ * selector loop.
+ * <p>
+ * The work is run by a worker and its completion is posted back to the TaskQueue of the loop
+ * that submitted it, so the completion runs on the thread of the loop and can touch its
+ * contexts and keys without synchronization. When the queue of the pool is full, the work is
+ * run by the submitting thread instead: the loop slows down, and so does its reading, rather
+ * than queuing without bound.
+ */
+public class WorkerPool {
+    private static final class Slot<T> {
+        private boolean done;
+        private T result;
+        private Exception error;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param nbThreads     the number of worker threads
+     * @param queueCapacity the maximum number of submitted works waiting for a worker
+     */
+    public WorkerPool(int nbThreads, int queueCapacity) {
+        if (nbThreads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("nbThreads and queueCapacity must be positive");
+        }
+        var index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(nbThreads, nbThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    var thread = new Thread(runnable, "worker-" + index.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Run work on a worker, then completion on the thread of the loop, with either the
+     * result of work or the exception it has thrown. An Error thrown by work is given to
+     * completion wrapped in an ExecutionException.
+     *
+     * @param work       the work to run on a worker
+     * @param loop       the task queue of the loop on which completion must run
+     * @param completion called with the result and null, or with null and the exception
+     * @param <T>        the type of the result
+     */
+    public <T> void submit(Callable<? extends T> work, TaskQueue loop, BiConsumer<? super T, ? super Exception> completion) {
+        Objects.requireNonNull(work);
+        Objects.requireNonNull(loop);
+        Objects.requireNonNull(completion);
+        executor.execute(() -> {
+            T result = null;
+            Exception error = null;
+            try {
+                result = work.call();
+            } catch (Exception e) {
+                error = e;
+            } catch (Throwable t) { // the completion must run, or a lane would wait for it forever
+                error = new ExecutionException(t);
+            }
+            var r = result;
+            var e = error;
+            loop.post(() -> completion.accept(r, e));
+        });
+    }
+
+    /**
+     * Creates a lane for the works of one connection: their completions run in the order the
+     * works were submitted, whatever the order in which the workers finish them.
+     *
+     * @param loop       the task queue of the loop owning the connection
+     * @param completion called with the result and null, or with null and the exception
+     * @param <T>        the type of the results
+     * @return a new lane, to be used only from the thread of the loop
+     */
+    public <T> Lane<T> newLane(TaskQueue loop, BiConsumer<? super T, ? super Exception> completion) {
+        return new Lane<>(Objects.requireNonNull(loop), Objects.requireNonNull(completion));
+    }
+
+    /**
+     * @return the number of submitted works waiting for a worker
+     */
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of works being run by a worker
+     */
+    public int activeCount() {
+        return executor.getActiveCount();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Works of one connection, completed in order. Not thread-safe: submit and the
+     * completions run on the thread of the loop.
+     *
+     * @param <T> the type of the results
+     */
+    public final class Lane<T> {
+        private final TaskQueue loop;
+        private final BiConsumer<? super T, ? super Exception> completion;
+        private final ArrayDeque<Slot<T>> slots = new ArrayDeque<>(); // in submission order
+
+        private Lane(TaskQueue loop, BiConsumer<? super T, ? super Exception> completion) {
+            this.loop = loop;
+            this.completion = completion;
+        }
+
+        public void submit(Callable<? extends T> work) {
+            var slot = new Slot<T>();
+            slots.add(slot);
+            WorkerPool.this.<T>submit(work, loop, (result, error) -> complete(slot, result, error));
+        }
+
+        private void complete(Slot<T> slot, T result, Exception error) {
+            slot.done = true;
+            slot.result = result;
+            slot.error = error;
+            while (!slots.isEmpty() && slots.peek().done) {
+                var head = slots.poll();
+                completion.accept(head.result, head.error);
+            }
+        }
+
+        /**
+         * @return the number of works submitted and not completed yet
+         */
+        public int outstanding() {
+            return slots.size();
+        }
+
+        /**
+         * Forget the works not completed yet, their completion will never be called.
+         */
+        public void discard() {
+            slots.clear();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class WorkerPoolTest {
+
+    @Test
+    public void laneCompletesInSubmissionOrder() throws IOException {
+        var pool = new WorkerPool(4, 8);
+        try (var selector = Selector.open()) {
+            var tasks = new TaskQueue(selector);
+            var results = new ArrayList<Integer>();
+            var lane = pool.<Integer>newLane(tasks, (result, error) -> results.add(result));
+            var count = 200;
+            for (var i = 0; i < count; i++) {
+                var value = i;
+                lane.submit(() -> {
+                    TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextInt(500));
+                    return value;
+                });
+                tasks.runAll();
+            }
+            while (lane.outstanding() != 0) {
+                selector.select(100);
+                tasks.runAll();
+            }
+            assertEquals(count, results.size());
+            for (var i = 0; i < count; i++) {
+                assertEquals(i, (int) results.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void errorOfWorkIsCompletedAsException() throws IOException {
+        var pool = new WorkerPool(1, 1);
+        try (var selector = Selector.open()) {
+            var tasks = new TaskQueue(selector);
+            var errors = new ArrayList<Exception>();
+            var lane = pool.<Integer>newLane(tasks, (result, error) -> errors.add(error));
+            lane.submit(() -> {
+                throw new StackOverflowError();
+            });
+            lane.submit(() -> 1);
+            while (lane.outstanding() != 0) {
+                selector.select(100);
+                tasks.runAll();
+            }
+            assertEquals(2, errors.size());
+            assertInstanceOf(ExecutionException.class, errors.get(0));
+            assertInstanceOf(StackOverflowError.class, errors.get(0).getCause());
+            assertNull(errors.get(1));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
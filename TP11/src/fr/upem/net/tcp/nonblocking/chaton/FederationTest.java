@@ -0,0 +1,148 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FederationTest {
+    private static final int TIMEOUT = 5_000;
+    private static final int SILENCE = 300; // wait for a duplicate
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timeout");
+            Thread.sleep(10);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        var bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void everyClientOfEveryNodeGetsEachMessageOnce() throws Exception {
+        var nbNodes = 3;
+        var addresses = new ArrayList<InetSocketAddress>();
+        for (var i = 0; i < nbNodes; i++) {
+            addresses.add(new InetSocketAddress("localhost", freePort()));
+        }
+        var servers = new ArrayList<ServerChaton>();
+        var threads = new ArrayList<Thread>();
+        var clients = new ArrayList<Socket>();
+        try {
+            for (var i = 0; i < nbNodes; i++) {
+                var server = new ServerChaton(addresses.get(i).getPort(), 2);
+                var peers = new HashMap<Integer, InetSocketAddress>();
+                for (var j = 0; j < nbNodes; j++) {
+                    if (j != i) {
+                        peers.put(j, addresses.get(j));
+                    }
+                }
+                server.setFederation(i, peers);
+                servers.add(server);
+                threads.add(start(server));
+            }
+            await(() -> servers.stream().allMatch(server -> server.connectedPeerCount() == nbNodes - 1));
+
+            for (var address : addresses) {
+                var client = new Socket();
+                client.connect(address, TIMEOUT);
+                client.setSoTimeout(TIMEOUT);
+                clients.add(client);
+            }
+            // each node has admitted the links of its peers and its client
+            await(() -> servers.stream().allMatch(server -> server.acceptedCount() == nbNodes));
+            for (var i = 0; i < nbNodes; i++) {
+                var frame = ServerChaton.encode(new Message("user" + i, "hello from node " + i));
+                var bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                clients.get(i).getOutputStream().write(bytes);
+            }
+            for (var client : clients) {
+                var input = new DataInputStream(client.getInputStream());
+                var received = new HashSet<String>();
+                for (var i = 0; i < nbNodes; i++) {
+                    received.add(readString(input) + ":" + readString(input));
+                }
+                assertEquals(Set.of("user0:hello from node 0", "user1:hello from node 1", "user2:hello from node 2"), received);
+                client.setSoTimeout(SILENCE);
+                assertThrows(SocketTimeoutException.class, input::readInt); // no duplicate
+            }
+            for (var server : servers) {
+                assertEquals(nbNodes - 1, server.forwardedCount());
+            }
+        } finally {
+            for (var client : clients) {
+                client.close();
+            }
+            shutdown(threads);
+        }
+    }
+
+    @Test
+    public void clientSendingTheLinkHandshakeIsDisconnected() throws Exception {
+        var address = new InetSocketAddress("localhost", freePort());
+        var server = new ServerChaton(address.getPort(), 2);
+        server.setFederation(0, Map.of(1, new InetSocketAddress("localhost", freePort())));
+        var thread = start(server);
+        try (var client = new Socket()) {
+            client.connect(address, TIMEOUT);
+            client.setSoTimeout(TIMEOUT);
+            var output = new DataOutputStream(client.getOutputStream());
+            output.writeInt(-2); // the marker of a link
+            output.writeInt(42); // not a peer
+            assertEquals(-1, client.getInputStream().read());
+        } finally {
+            shutdown(List.of(thread));
+        }
+    }
+
+    private static Thread start(ServerChaton server) {
+        var thread = new Thread(() -> {
+            try {
+                server.launch();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void shutdown(List<Thread> threads) throws InterruptedException {
+        for (var thread : threads) {
+            thread.interrupt();
+        }
+        for (var thread : threads) {
+            thread.join(TIMEOUT);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of frames with DEFLATE and a dictionary shared by the server and the clients.
+ * <p>
+ * Each frame is compressed on its own, starting from the dictionary, so that the same
+ * compressed frame can be sent to every client that asked for compression, whatever the
+ * frames it has received before. The dictionary, typically made of the words and usernames
+ * frequent in the chat, gives to short messages most of the gain of a stream. A compressed
+ * frame is the int MARKER, which is not a valid length, the size of the original frame, the
+ * size of the compressed bytes, then these raw DEFLATE bytes. A frame that would not be
+ * smaller compressed is returned as is.
+ * <p>
+ * A compressor holds a Deflater, it must be used by one thread at a time and closed.
+ */
+public class FrameCompressor implements AutoCloseable {
+    public static final int MARKER = -7;
+    public static final int MAX_SIZE = 1 << 20; // of an original frame, checked when decompressing
+    private static final int HEADER = Integer.BYTES * 3;
+
+    private final byte[] dictionary;
+    private final Deflater deflater;
+
+    /**
+     * @param dictionary the dictionary shared with the clients, possibly empty
+     * @param level      the compression level, from 0 to 9
+     */
+    public FrameCompressor(byte[] dictionary, int level) {
+        this.dictionary = Objects.requireNonNull(dictionary);
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * @param dictionary a dictionary
+     * @return the Adler-32 checksum of the dictionary, which identifies it, as zlib does
+     */
+    public static int dictionaryId(byte[] dictionary) {
+        var adler = new Adler32();
+        adler.update(dictionary);
+        return (int) adler.getValue();
+    }
+
+    /**
+     * @param frame a frame in read-mode, its position is not moved
+     * @return a read-only compressed frame in read-mode, or frame if compressing it does not
+     * make it smaller
+     */
+    public ByteBuffer compress(ByteBuffer frame) {
+        var size = frame.remaining();
+        if (size <= HEADER) {
+            return frame;
+        }
+        deflater.reset();
+        if (dictionary.length != 0) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(frame.duplicate());
+        deflater.finish();
+        var compressed = ByteBuffer.allocate(size); // room for a compressed frame smaller than frame
+        compressed.position(HEADER);
+        deflater.deflate(compressed);
+        var length = compressed.position() - HEADER;
+        if (!deflater.finished() || HEADER + length >= size) {
+            return frame;
+        }
+        compressed.putInt(0, MARKER).putInt(Integer.BYTES, size).putInt(Integer.BYTES * 2, length);
+        return compressed.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Decompress a frame compressed by a compressor with the same dictionary, for the clients.
+     *
+     * @param compressed a compressed frame in read-mode, starting with MARKER
+     * @param dictionary the shared dictionary
+     * @return the original frame, in read-mode
+     * @throws DataFormatException if compressed is not a valid compressed frame
+     */
+    public static ByteBuffer decompress(ByteBuffer compressed, byte[] dictionary) throws DataFormatException {
+        var header = compressed.duplicate();
+        if (header.remaining() < HEADER || header.getInt() != MARKER) {
+            throw new DataFormatException("not a compressed frame");
+        }
+        var size = header.getInt();
+        var length = header.getInt();
+        if (size < 0 || size > MAX_SIZE || length < 0 || length > header.remaining()) {
+            throw new DataFormatException("invalid sizes " + size + "/" + length);
+        }
+        var inflater = new Inflater(true);
+        try {
+            if (dictionary.length != 0) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(header.limit(header.position() + length));
+            var frame = ByteBuffer.allocate(size);
+            inflater.inflate(frame);
+            if (frame.hasRemaining()) {
+                throw new DataFormatException("frame of " + frame.position() + " bytes instead of " + size);
+            }
+            return frame.flip();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+}
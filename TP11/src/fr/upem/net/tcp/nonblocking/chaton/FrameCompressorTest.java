@@ -0,0 +1,92 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrameCompressorTest {
+    private static final byte[] DICTIONARY = "Chorche hello everyone the meeting is at ".getBytes(StandardCharsets.UTF_8);
+
+    private static ByteBuffer frame(String username, String text) {
+        return ServerChaton.encode(new Message(username, text));
+    }
+
+    @Test
+    public void roundTrip() throws DataFormatException {
+        try (var compressor = new FrameCompressor(DICTIONARY, 6)) {
+            for (var text : new String[]{"hello everyone, the meeting is at noon", "é".repeat(500)}) {
+                var frame = frame("Chorche", text);
+                var compressed = compressor.compress(frame);
+                assertEquals(FrameCompressor.MARKER, compressed.getInt(0));
+                assertTrue(compressed.remaining() < frame.remaining());
+                assertEquals(frame, FrameCompressor.decompress(compressed, DICTIONARY));
+                assertEquals(0, frame.position());
+            }
+        }
+    }
+
+    @Test
+    public void framesAreCompressedIndependently() throws DataFormatException {
+        try (var compressor = new FrameCompressor(DICTIONARY, 6)) {
+            var first = compressor.compress(frame("Chorche", "hello everyone"));
+            var second = compressor.compress(frame("Chorche", "hello everyone"));
+            assertEquals(first, second);
+            assertEquals(frame("Chorche", "hello everyone"), FrameCompressor.decompress(second, DICTIONARY));
+        }
+    }
+
+    @Test
+    public void dictionaryShrinksShortFrames() {
+        var frame = frame("Chorche", "hello everyone the meeting is at noon");
+        try (var withDictionary = new FrameCompressor(DICTIONARY, 6);
+             var without = new FrameCompressor(new byte[0], 6)) {
+            assertTrue(withDictionary.compress(frame).remaining() < without.compress(frame).remaining());
+        }
+    }
+
+    @Test
+    public void incompressibleFrameIsReturnedAsIs() {
+        var random = new byte[200];
+        new Random(0).nextBytes(random);
+        var frame = ByteBuffer.allocate(Integer.BYTES + random.length).putInt(random.length).put(random).flip();
+        try (var compressor = new FrameCompressor(DICTIONARY, 6)) {
+            assertSame(frame, compressor.compress(frame));
+        }
+    }
+
+    @Test
+    public void compressedFrameIsAlwaysSmaller() {
+        var random = new Random(0);
+        try (var compressor = new FrameCompressor(DICTIONARY, 6)) {
+            for (var size = 1; size < 200; size++) {
+                for (var repeated = 0; repeated <= size / 2; repeated += size / 8 + 1) {
+                    var bytes = new byte[size];
+                    random.nextBytes(bytes);
+                    Arrays.fill(bytes, 0, repeated, (byte) 'a');
+                    var frame = ByteBuffer.wrap(bytes);
+                    var compressed = compressor.compress(frame);
+                    assertTrue(compressed == frame || compressed.remaining() < size);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void wrongDictionaryIsDetected() {
+        try (var compressor = new FrameCompressor(DICTIONARY, 6)) {
+            var compressed = compressor.compress(frame("Chorche", "hello everyone the meeting is at noon"));
+            assertNotEquals(FrameCompressor.dictionaryId(DICTIONARY), FrameCompressor.dictionaryId(new byte[0]));
+            assertThrows(DataFormatException.class, () -> FrameCompressor.decompress(compressed, new byte[0]));
+        }
+    }
+}
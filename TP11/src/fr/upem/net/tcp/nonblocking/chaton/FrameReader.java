@@ -0,0 +1,113 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of the frames of a message, for a server that relays them without looking at them.
+ * <p>
+ * Only the two length fields are checked, the username and the text are neither decoded nor
+ * checked to be valid UTF-8. The result is the exact bytes of the frame, in a buffer of their
+ * size that can be sent as is to every recipient. The text is copied once, from the buffer of
+ * the connection to the frame; only the few bytes of the username are copied twice.
+ * <p>
+ * The convention is that the buffer given to process is in write-mode before and after the call.
+ */
+public class FrameReader implements Reader<ByteBuffer> {
+    private enum State {
+        USERNAME_SIZE, USERNAME, TEXT_SIZE, TEXT, DONE, ERROR
+    }
+
+    public static final int MAX_SIZE = 1_024; // of the username and of the text, in bytes
+    public static final int MAX_FRAME = Integer.BYTES * 2 + MAX_SIZE * 2; // size of the largest frame read
+
+    private State state = State.USERNAME_SIZE;
+    private final ByteBuffer size = ByteBuffer.allocate(Integer.BYTES);
+    private ByteBuffer username;
+    private ByteBuffer frame;
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (state == State.DONE || state == State.ERROR) {
+            throw new IllegalStateException();
+        }
+        buffer.flip();
+        try {
+            while (state != State.DONE) {
+                switch (state) {
+                    case USERNAME_SIZE, TEXT_SIZE -> {
+                        if (!fill(buffer, size)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        var length = size.flip().getInt();
+                        size.clear();
+                        if (length < 0 || length > MAX_SIZE) {
+                            state = State.ERROR;
+                            return ProcessStatus.ERROR;
+                        }
+                        if (state == State.USERNAME_SIZE) {
+                            username = ByteBuffer.allocate(length);
+                            state = State.USERNAME;
+                        } else {
+                            frame = ByteBuffer.allocate(Integer.BYTES * 2 + username.capacity() + length);
+                            frame.putInt(username.capacity()).put(username.flip()).putInt(length);
+                            username = null;
+                            state = State.TEXT;
+                        }
+                    }
+                    case USERNAME -> {
+                        if (!fill(buffer, username)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        state = State.TEXT_SIZE;
+                    }
+                    case TEXT -> {
+                        if (!fill(buffer, frame)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        state = State.DONE;
+                    }
+                    default -> throw new AssertionError();
+                }
+            }
+            return ProcessStatus.DONE;
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Move to target as many bytes of source as possible.
+     *
+     * @return true if target is full
+     */
+    private static boolean fill(ByteBuffer source, ByteBuffer target) {
+        if (source.remaining() <= target.remaining()) {
+            target.put(source);
+        } else {
+            var limit = source.limit();
+            source.limit(source.position() + target.remaining());
+            target.put(source);
+            source.limit(limit);
+        }
+        return !target.hasRemaining();
+    }
+
+    /**
+     * @return a read-only buffer in read-mode containing the frame, starting at position 0
+     */
+    @Override
+    public ByteBuffer get() {
+        if (state != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return frame.asReadOnlyBuffer().flip();
+    }
+
+    @Override
+    public void reset() {
+        state = State.USERNAME_SIZE;
+        size.clear();
+        username = null;
+        frame = null;
+    }
+}
@@ -0,0 +1,50 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FrameReaderTest {
+
+    private static ByteBuffer frame(String username, String text) {
+        return ServerChaton.encode(new Message(username, text));
+    }
+
+    @Test
+    public void simple() {
+        var expected = frame("Chorche", "Zebiiii!");
+        var buffer = ByteBuffer.allocate(1024);
+        buffer.put(expected.duplicate()).put(frame("next", "one"));
+
+        var reader = new FrameReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(buffer));
+        assertEquals(expected, reader.get());
+        assertEquals(expected.remaining(), reader.get().capacity());
+        assertEquals(frame("next", "one").remaining(), buffer.position());
+    }
+
+    @Test
+    public void byteByByte() {
+        var expected = frame("Chorche", "é".repeat(500));
+        var buffer = ByteBuffer.allocate(1);
+        var reader = new FrameReader();
+        for (var i = 0; i < expected.limit() - 1; i++) {
+            buffer.put(expected.get(i));
+            assertEquals(Reader.ProcessStatus.REFILL, reader.process(buffer));
+        }
+        buffer.put(expected.get(expected.limit() - 1));
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(buffer));
+        assertEquals(expected, reader.get());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void tooLong() {
+        var buffer = ByteBuffer.allocate(1024);
+        buffer.putInt(3).put((byte) 'b').put((byte) 'o').put((byte) 'b').putInt(FrameReader.MAX_SIZE + 1);
+        assertEquals(Reader.ProcessStatus.ERROR, new FrameReader().process(buffer));
+        assertEquals(Reader.ProcessStatus.ERROR, new FrameReader().process(ByteBuffer.allocate(8).putInt(-1)));
+    }
+}
@@ -0,0 +1,36 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * A frame about a room, as read by {@link RoomFrameReader}.
+ *
+ * @param kind  what the frame asks for
+ * @param room  the name of the room
+ * @param frame the exact bytes of the frame, read-only, to relay a MESSAGE to the members
+ */
+public record RoomFrame(Kind kind, String room, ByteBuffer frame) {
+    public enum Kind {
+        JOIN(-3), LEAVE(-4), MESSAGE(-5);
+
+        private final int marker;
+
+        Kind(int marker) {
+            this.marker = marker;
+        }
+
+        /**
+         * @return the first int of the frames of this kind, which is not a valid length
+         */
+        public int marker() {
+            return marker;
+        }
+    }
+
+    public RoomFrame {
+        Objects.requireNonNull(kind);
+        Objects.requireNonNull(room);
+        Objects.requireNonNull(frame);
+    }
+}
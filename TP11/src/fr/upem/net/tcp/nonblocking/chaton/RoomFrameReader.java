@@ -0,0 +1,166 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of the frames about rooms.
+ * <p>
+ * Such a frame starts with the marker of its kind, which can not be the length of a username,
+ * followed by the name of the room as an int length and the UTF-8 bytes. A MESSAGE frame
+ * then goes on with an ordinary message, username and text. Only the name of the room is
+ * decoded: the message is kept as the exact bytes of the whole frame, to be relayed as is to
+ * the members of the room.
+ * <p>
+ * The convention is that the buffer given to process is in write-mode before and after the call.
+ */
+public class RoomFrameReader implements Reader<RoomFrame> {
+    private enum State {
+        MARKER, ROOM_SIZE, ROOM, USERNAME_SIZE, USERNAME, TEXT_SIZE, TEXT, DONE, ERROR
+    }
+
+    public static final int MAX_SIZE = 1_024; // of the name of the room, the username and the text, in bytes
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private State state = State.MARKER;
+    private final ByteBuffer size = ByteBuffer.allocate(Integer.BYTES);
+    private RoomFrame.Kind kind;
+    private ByteBuffer room;
+    private ByteBuffer username;
+    private ByteBuffer frame;
+    private RoomFrame value;
+
+    /**
+     * @param marker the first int of a frame
+     * @return true if the frame is about a room
+     */
+    public static boolean isRoomFrame(int marker) {
+        return kindOf(marker) != null;
+    }
+
+    private static RoomFrame.Kind kindOf(int marker) {
+        for (var kind : RoomFrame.Kind.values()) {
+            if (kind.marker() == marker) {
+                return kind;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public ProcessStatus process(ByteBuffer buffer) {
+        if (state == State.DONE || state == State.ERROR) {
+            throw new IllegalStateException();
+        }
+        buffer.flip();
+        try {
+            while (state != State.DONE) {
+                switch (state) {
+                    case MARKER, ROOM_SIZE, USERNAME_SIZE, TEXT_SIZE -> {
+                        if (!fill(buffer, size)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        var read = size.flip().getInt();
+                        size.clear();
+                        if (state == State.MARKER) {
+                            kind = kindOf(read);
+                            if (kind == null) {
+                                state = State.ERROR;
+                                return ProcessStatus.ERROR;
+                            }
+                            state = State.ROOM_SIZE;
+                            continue;
+                        }
+                        if (read < 0 || read > MAX_SIZE) {
+                            state = State.ERROR;
+                            return ProcessStatus.ERROR;
+                        }
+                        switch (state) {
+                            case ROOM_SIZE -> {
+                                room = ByteBuffer.allocate(read);
+                                state = State.ROOM;
+                            }
+                            case USERNAME_SIZE -> {
+                                username = ByteBuffer.allocate(read);
+                                state = State.USERNAME;
+                            }
+                            default -> {
+                                frame = ByteBuffer.allocate(Integer.BYTES * 4 + room.capacity() + username.capacity() + read);
+                                frame.putInt(kind.marker())
+                                        .putInt(room.capacity()).put(room.flip())
+                                        .putInt(username.capacity()).put(username.flip())
+                                        .putInt(read);
+                                username = null;
+                                state = State.TEXT;
+                            }
+                        }
+                    }
+                    case ROOM -> {
+                        if (!fill(buffer, room)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        state = kind == RoomFrame.Kind.MESSAGE ? State.USERNAME_SIZE : State.DONE;
+                    }
+                    case USERNAME -> {
+                        if (!fill(buffer, username)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        state = State.TEXT_SIZE;
+                    }
+                    case TEXT -> {
+                        if (!fill(buffer, frame)) {
+                            return ProcessStatus.REFILL;
+                        }
+                        state = State.DONE;
+                    }
+                    default -> throw new AssertionError();
+                }
+            }
+            var name = CHARSET.decode(room.flip()).toString();
+            if (frame == null) { // JOIN or LEAVE, nothing to relay
+                frame = ByteBuffer.allocate(0);
+            }
+            value = new RoomFrame(kind, name, frame.asReadOnlyBuffer().flip());
+            return ProcessStatus.DONE;
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Move to target as many bytes of source as possible.
+     *
+     * @return true if target is full
+     */
+    private static boolean fill(ByteBuffer source, ByteBuffer target) {
+        if (source.remaining() <= target.remaining()) {
+            target.put(source);
+        } else {
+            var limit = source.limit();
+            source.limit(source.position() + target.remaining());
+            target.put(source);
+            source.limit(limit);
+        }
+        return !target.hasRemaining();
+    }
+
+    @Override
+    public RoomFrame get() {
+        if (state != State.DONE) {
+            throw new IllegalStateException();
+        }
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        state = State.MARKER;
+        size.clear();
+        kind = null;
+        room = null;
+        username = null;
+        frame = null;
+        value = null;
+    }
+}
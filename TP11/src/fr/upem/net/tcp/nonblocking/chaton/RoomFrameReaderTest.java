@@ -0,0 +1,56 @@
+package fr.upem.net.tcp.nonblocking.chaton;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RoomFrameReaderTest {
+
+    private static ByteBuffer putString(ByteBuffer buffer, String string) {
+        var bytes = StandardCharsets.UTF_8.encode(string);
+        return buffer.putInt(bytes.remaining()).put(bytes);
+    }
+
+    @Test
+    public void join() {
+        var buffer = ByteBuffer.allocate(1024);
+        putString(buffer.putInt(RoomFrame.Kind.JOIN.marker()), "général");
+
+        assertTrue(RoomFrameReader.isRoomFrame(buffer.getInt(0)));
+        var reader = new RoomFrameReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(buffer));
+        assertEquals(RoomFrame.Kind.JOIN, reader.get().kind());
+        assertEquals("général", reader.get().room());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void messageIsKeptAsSent() {
+        var frame = ByteBuffer.allocate(1024);
+        putString(putString(putString(frame.putInt(RoomFrame.Kind.MESSAGE.marker()), "room"), "Chorche"), "Zebiiii!");
+        frame.flip();
+        var buffer = ByteBuffer.allocate(3);
+        var reader = new RoomFrameReader();
+        while (frame.remaining() > 1) {
+            buffer.put(frame.get());
+            assertEquals(Reader.ProcessStatus.REFILL, reader.process(buffer));
+        }
+        buffer.put(frame.get());
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(buffer));
+        assertEquals("room", reader.get().room());
+        assertEquals(frame.flip(), reader.get().frame());
+    }
+
+    @Test
+    public void ordinaryMessage() {
+        assertFalse(RoomFrameReader.isRoomFrame(7));
+        var buffer = ByteBuffer.allocate(1024);
+        buffer.putInt(RoomFrame.Kind.LEAVE.marker()).putInt(RoomFrameReader.MAX_SIZE + 1);
+        assertEquals(Reader.ProcessStatus.ERROR, new RoomFrameReader().process(buffer));
+    }
+}
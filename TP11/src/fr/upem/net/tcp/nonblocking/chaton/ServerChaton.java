@@ -1,258 +1,2376 @@
 package fr.upem.net.tcp.nonblocking.chaton;
 
+import fr.upem.net.tcp.nonblocking.AcceptLimiter;
+import fr.upem.net.tcp.nonblocking.BroadcastRing;
+import fr.upem.net.tcp.nonblocking.BufferPool;
+import fr.upem.net.tcp.nonblocking.HistoryRing;
+import fr.upem.net.tcp.nonblocking.LeasedBuffer;
+import fr.upem.net.tcp.nonblocking.MemoryBudget;
+import fr.upem.net.tcp.nonblocking.MessageLog;
+import fr.upem.net.tcp.nonblocking.SessionRegistry;
+import fr.upem.net.tcp.nonblocking.TaskQueue;
+import fr.upem.net.tcp.nonblocking.TimingWheel;
+import fr.upem.net.tcp.nonblocking.Trace;
+import fr.upem.net.tcp.nonblocking.WorkerPool;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 public class ServerChaton {
-    private class Context {
-        private final SelectionKey key;
+    /**
+     * A frame broadcast by a loop, with the sequence of the broadcast among those of this loop.
+     */
+    private record Frame(ByteBuffer frame, int origin, long sequence) {
+    }
+
+    /**
+     * A context to be handed off by its loop to target, once its loop has processed every
+     * frame target had processed when it started to prepare the adoption.
+     */
+    private record Handoff(Context context, EventLoop target, long[] from) {
+    }
+
+    /**
+     * The frames processed by a loop while waiting for a context to be handed off to it.
+     */
+    private static final class Adoption {
+        private final long[] from;
+        private final ArrayList<Frame> inbox = new ArrayList<>();
+
+        private Adoption(long[] from) {
+            this.from = from;
+        }
+    }
+
+    /**
+     * What the other end of a connection is. A node forwards the messages of its clients to
+     * its peers on the links it opens (LINK_OUT), and broadcasts to its clients the messages
+     * of the peers received on the links they open (LINK_IN).
+     */
+    private enum Role {
+        CLIENT, LINK_IN, LINK_OUT
+    }
+
+    /**
+     * A peer node, which this node connects to. Its connection is opened by the acceptor and
+     * handled by a loop, like a client.
+     */
+    private static final class Link {
+        private final int node;
+        private final InetSocketAddress address;
+        private volatile Context context; // null while the connection is not established
+        private volatile boolean connecting = false;
+
+        private Link(int node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+    }
+
+    /**
+     * The members of a room on a loop, in a compact array. Each member also keeps, for each
+     * of its rooms, its index in the members of the room, and each room keeps, for each of its
+     * members, the index of the room in the rooms of the member, so that joining and leaving
+     * are O(1) on both sides. A membership costs a reference and an int on each side.
+     */
+    private static final class Room {
+        private final String name;
+        private Context[] members = new Context[1];
+        private int[] memberships = new int[1]; // index of this room in the rooms of each member
+        private int size = 0;
+
+        private Room(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param member     the new member
+         * @param membership the index of this room in the rooms of member
+         * @return the index of member in the members of this room
+         */
+        private int add(Context member, int membership) {
+            if (size == members.length) {
+                members = Arrays.copyOf(members, size * 2);
+                memberships = Arrays.copyOf(memberships, size * 2);
+            }
+            members[size] = member;
+            memberships[size] = membership;
+            return size++;
+        }
+
+        /**
+         * Remove the member at index slot, the last member takes its place.
+         */
+        private void remove(int slot) {
+            var last = --size;
+            if (slot != last) {
+                var moved = members[last];
+                members[slot] = moved;
+                memberships[slot] = memberships[last];
+                moved.roomSlots[memberships[slot]] = slot;
+            }
+            members[last] = null;
+            if (size > 0 && size <= members.length / 4) { // a room that was big does not keep its array
+                members = Arrays.copyOf(members, members.length / 2);
+                memberships = Arrays.copyOf(memberships, memberships.length / 2);
+            }
+        }
+    }
+
+    private class Context implements SessionRegistry.Session {
+        private volatile EventLoop loop; // changes when the context migrates to another loop
+        private SelectionKey key;
         private final SocketChannel sc;
-        private final MessageReader reader = new MessageReader();
-        private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
-        private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
-        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        private Reader<?> reader; // null between two frames
+        private final LeasedBuffer in = new LeasedBuffer(BUFFER_POOL, budget); // bufferIn, only leased while bytes are in flight
+        private boolean attached = true; // sends the frames of the ring of the loop, otherwise those of queue
+        private long cursor; // sequence in the ring of the next frame to send
+        private int offset = 0; // number of bytes of the frame at cursor already sent
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>(); // only used when detached
+        private long queuedBytes = 0;
+        private boolean congested = false; // went over highWatermark and not yet back under lowWatermark
+        private boolean paused = false; // reading suspended because our messages congest other clients
+        private boolean backlogged = false; // frames left in bufferIn once the frame budget was spent
+        private boolean dirty = false; // frames queued while detached during this iteration, not flushed yet
         private boolean closed = false;
+        private boolean released = false;
+        private int registryIndex = -1;
+        private TimingWheel.Timer idleTimer;
+        private WorkerPool.Lane<Message> lane; // null when the messages are not filtered by workers
+        private long bytesRead = 0; // since the last sample of the load of the loop
+        private long framesRead = 0;
+        private double load = 0; // during the last period, 1 or more for a hot connection
+        private boolean migrating = false; // chosen to move to another loop and not adopted yet
+        private long[] delivered; // once adopted, per loop the sequence of the last frame sent by the previous loop, null when passed
+        private long replayed = 0; // offset in the log of the next byte to replay
+        private long replayEnd = 0; // offset in the log of the end of the replay
+        private Role role = Role.CLIENT;
+        private Link link; // only for LINK_OUT
+        private Room[] rooms = NO_ROOMS; // joined, on this loop
+        private int[] roomSlots = NO_SLOTS; // index of this context in the members of each room
+        private int roomCount = 0;
+        private boolean compressed = false; // sent the broadcast frames compressed, from the queue
 
-        private Context(SelectionKey key) {
+        private Context(EventLoop loop, SelectionKey key) {
+            this.loop = loop;
             this.key = key;
             this.sc = (SocketChannel) key.channel();
+            this.cursor = loop.ring.head();
+            this.idleTimer = loop.timeouts.newTimer(this::closeIdle);
+            this.lane = workers == null ? null : workers.newLane(loop.mailbox, this::filtered);
+            touch();
+        }
+
+        /**
+         * Push back the idle timeout of the connection, in O(1).
+         */
+        private void touch() {
+            if (idleTimeout > 0 && role == Role.CLIENT) {
+                loop.timeouts.schedule(idleTimer, loop.now() + idleTimeout);
+            }
+        }
+
+        private void closeIdle() {
+            logger.info("Closing connection idle for " + idleTimeout + " ms");
+            silentlyClose();
+        }
+
+        @Override
+        public int registryIndex() {
+            return registryIndex;
+        }
+
+        @Override
+        public void setRegistryIndex(int index) {
+            registryIndex = index;
         }
 
         /**
-         * Process the content of bufferIn
+         * Process the content of bufferIn, at most frameBudget frames. If frames are left,
+         * the context is put in the ready list of the loop and stops reading until they
+         * have been processed.
+         * <p>
+         * The frames are relayed as they were received, only their length fields are checked.
+         * They are decoded into messages only when a filter needs them.
+         * <p>
+         * Once everything has been processed, bufferIn goes back to the pool, with a copy of the
+         * bytes of an incomplete frame if the reader left some, and the reader is dropped if the
+         * connection is between two frames: an idle connection holds neither of them.
          * <p>
          * The convention is that bufferIn is in write-mode before the call to process and
          * after the call
          */
         private void processIn() {
-            while (bufferIn.hasRemaining()) {
+            var bufferIn = in.acquire();
+            if (role == Role.LINK_OUT) { // the peer sends nothing on the links we open
+                bufferIn.clear();
+                in.release();
+                return;
+            }
+            for (var frames = 0; ; frames++) {
+                if (reader == null && bufferIn.position() == 0) {
+                    in.release();
+                    return;
+                }
+                if (reader == null && role == Role.CLIENT && bufferIn.position() >= Integer.BYTES
+                        && bufferIn.getInt(0) == LINK_MARKER) {
+                    if (bufferIn.position() < Integer.BYTES * 2) {
+                        in.release();
+                        return;
+                    }
+                    var node = bufferIn.getInt(Integer.BYTES);
+                    bufferIn.flip().position(Integer.BYTES * 2);
+                    bufferIn.compact();
+                    if (!linkFrom(node)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (reader == null && role == Role.CLIENT && bufferIn.position() >= Integer.BYTES
+                        && bufferIn.getInt(0) == COMPRESS_MARKER) {
+                    if (bufferIn.position() < Integer.BYTES * 2) {
+                        in.release();
+                        return;
+                    }
+                    var dictionaryId = bufferIn.getInt(Integer.BYTES);
+                    bufferIn.flip().position(Integer.BYTES * 2);
+                    bufferIn.compact();
+                    negotiateCompression(dictionaryId);
+                    continue;
+                }
+                if (frames == frameBudget && bufferIn.position() != 0) {
+                    backlogged = true;
+                    loop.ready.add(this);
+                    return;
+                }
+                if (reader == null) {
+                    if (bufferIn.position() < Integer.BYTES) { // the first int tells the kind of frame
+                        in.release();
+                        return;
+                    }
+                    if (RoomFrameReader.isRoomFrame(bufferIn.getInt(0))) {
+                        reader = new RoomFrameReader();
+                    } else {
+                        // the messages of the peers have been filtered by their node
+                        reader = lane == null || role == Role.LINK_IN ? new FrameReader() : new MessageReader();
+                    }
+                }
                 switch (reader.process(bufferIn)) {
                     case ERROR:
                         silentlyClose();
+                        return;
                     case REFILL:
+                        in.release();
                         return;
                     case DONE:
-                        broadcast(reader.get());
-                        reader.reset();
+                        framesRead++;
+                        if (reader instanceof RoomFrameReader roomReader) {
+                            onRoomFrame(roomReader.get());
+                        } else if (reader instanceof FrameReader frameReader) {
+                            broadcast(frameReader.get(), this);
+                        } else {
+                            var msg = ((MessageReader) reader).get();
+                            lane.submit(() -> filter.apply(msg));
+                        }
+                        reader = null;
                         break;
                 }
             }
         }
 
         /**
-         * Add a message to the message queue, tries to fill bufferOut and updateInterestOps
+         * Handle a frame about a room. The messages of a room are relayed as they were received
+         * to the members of the room only, including the sender if it is a member. Unlike the
+         * messages to everyone, they are neither filtered, nor logged, nor kept in the history.
          *
-         * @param msg the message to add
-         */
-        public void queueMessage(Message msg) {
-            var username = CHARSET.encode(msg.username());
-            var text = CHARSET.encode(msg.text());
-            var buffer = ByteBuffer.allocate(username.remaining() + text.remaining() + Integer.BYTES * 2);
-            buffer.putInt(username.remaining())
-                    .put(username)
-                    .putInt(text.remaining())
-                    .put(text)
-                    .flip();
-            queue.offer(buffer);
-            processOut();
-            updateInterestOps();
+         * @param roomFrame the frame read
+         */
+        private void onRoomFrame(RoomFrame roomFrame) {
+            switch (roomFrame.kind()) {
+                case JOIN -> {
+                    if (role == Role.CLIENT) {
+                        joinRoom(roomFrame.room());
+                    }
+                }
+                case LEAVE -> leaveRoom(roomFrame.room());
+                case MESSAGE -> publish(roomFrame.room(), roomFrame.frame(), this);
+            }
         }
 
-        /**
-         * Try to fill bufferOut from the message queue
-         */
-        private void processOut() {
-            while (!queue.isEmpty() && bufferOut.hasRemaining()) {
-                var msg = queue.peek();
-                if (!msg.hasRemaining()) {
-                    queue.poll();
-                    continue;
+        private void joinRoom(String name) {
+            for (var i = 0; i < roomCount; i++) {
+                if (rooms[i].name.equals(name)) {
+                    return;
                 }
-                if (msg.remaining() <= bufferOut.remaining()) {
-                    bufferOut.put(msg);
-                } else {
-                    var oldLimit = msg.limit();
-                    msg.limit(bufferOut.remaining());
-                    bufferOut.put(msg);
-                    msg.limit(oldLimit);
+            }
+            var room = loop.rooms.computeIfAbsent(name, Room::new);
+            if (roomCount == rooms.length) {
+                rooms = Arrays.copyOf(rooms, Math.max(2, roomCount * 2));
+                roomSlots = Arrays.copyOf(roomSlots, rooms.length);
+            }
+            rooms[roomCount] = room;
+            roomSlots[roomCount] = room.add(this, roomCount);
+            roomCount++;
+        }
+
+        private void leaveRoom(String name) {
+            for (var i = 0; i < roomCount; i++) {
+                if (rooms[i].name.equals(name)) {
+                    removeMembership(i);
+                    return;
                 }
             }
         }
 
         /**
-         * Update the interestOps of the key looking only at values of the boolean
-         * closed and of both ByteBuffers.
+         * Leave the room at index i of the rooms of this context. The room is forgotten by the
+         * loop once it has no member.
+         */
+        private void removeMembership(int i) {
+            var room = rooms[i];
+            room.remove(roomSlots[i]);
+            if (room.size == 0) {
+                loop.rooms.remove(room.name);
+            }
+            var last = --roomCount;
+            if (i != last) {
+                rooms[i] = rooms[last];
+                roomSlots[i] = roomSlots[last];
+                rooms[i].memberships[roomSlots[i]] = i;
+            }
+            rooms[last] = null;
+        }
+
+        /**
+         * Add a frame of one of the rooms of this context to its queue. An attached context
+         * first moves to the queue the frames of the ring it has not sent yet, so that the
+         * frames are sent in the order the loop got them. It goes back to the ring once the
+         * queue is empty.
+         *
+         * @param frame  the read-only frame
+         * @param sender the context the message comes from
+         */
+        private void queueRoomFrame(ByteBuffer frame, Context sender) {
+            if (released) {
+                return;
+            }
+            if (attached) {
+                leaveRing();
+            }
+            queueFrame(frame, sender);
+        }
+
+        /**
+         * Answer the request of the client to be sent the broadcast frames compressed with the
+         * dictionary dictionaryId: the int -6 then the id of the dictionary if compression is
+         * accepted, 0 otherwise. The answer follows the frames already due to the client, the
+         * frames broadcast afterwards are compressed.
          * <p>
-         * The convention is that both buffers are in write-mode before the call to
-         * updateInterestOps and after the call. Also it is assumed that process has
-         * been be called just before updateInterestOps.
+         * A compressed context leaves the ring for good: the loop queues it the compressed frame
+         * shared by all the compressed clients. A frame broadcast before the answer, or that
+         * compression would not make smaller, is sent as is.
+         *
+         * @param dictionaryId the Adler-32 checksum of the dictionary of the client
          */
-        private void updateInterestOps() {
-            int interestOps = 0;
-            if (!closed && bufferIn.hasRemaining()) {
-                interestOps |= SelectionKey.OP_READ;
+        private void negotiateCompression(int dictionaryId) {
+            if (released) {
+                return;
             }
-            if (bufferOut.position() != 0) {
-                interestOps |= SelectionKey.OP_WRITE;
+            if (attached) {
+                leaveRing();
             }
+            if (!compressed && !migrating && compressionDictionary != null && dictionaryId == compressionId) {
+                compressed = true;
+                loop.detached.remove(this);
+                loop.compressing.add(this);
+                compressedClients.incrementAndGet();
+            }
+            var answer = ByteBuffer.allocate(Integer.BYTES * 2)
+                    .putInt(COMPRESS_MARKER)
+                    .putInt(compressed ? compressionId : 0)
+                    .flip();
+            queueFrame(answer.asReadOnlyBuffer(), null);
+        }
+
+        private void stopCompressing() {
+            compressed = false;
+            loop.compressing.remove(this);
+            compressedClients.decrementAndGet();
+        }
 
-            if (interestOps == 0) {
+        /**
+         * Turn this connection into a link opened by the peer node, after its handshake: from
+         * now on its messages are only broadcast to the clients of this node, and it is sent
+         * nothing. The frames already due to it are dropped. The link is refused unless node
+         * is a peer given to setFederation and the connection comes from the address of that
+         * peer, so that a client can not pass for a peer.
+         *
+         * @param node the id of the peer
+         * @return false if the link was refused and the connection closed
+         */
+        private boolean linkFrom(int node) {
+            if (!isPeer(node)) {
+                logger.warning("Closing link claiming to come from node " + node + ", which is not a peer");
                 silentlyClose();
-                return;
+                return false;
             }
-            key.interestOps(interestOps);
+            logger.info("Link from node " + node);
+            role = Role.LINK_IN;
+            loop.timeouts.cancel(idleTimer);
+            replayed = replayEnd;
+            if (compressed) {
+                stopCompressing();
+            } else if (attached) {
+                attached = false;
+            } else {
+                loop.detached.remove(this);
+            }
+            queue.clear();
+            account(-queuedBytes);
+            if (congested) {
+                decongest();
+            }
+            return true;
         }
 
-        private void silentlyClose() {
+        private boolean isPeer(int node) {
+            InetSocketAddress remote;
             try {
-                sc.close();
+                remote = (InetSocketAddress) sc.getRemoteAddress();
             } catch (IOException e) {
-                // ignore exception
+                return false;
+            }
+            for (var link : links) {
+                if (link.node == node) {
+                    return remote != null && remote.getAddress().equals(link.address.getAddress());
+                }
             }
+            return false;
         }
 
         /**
-         * Performs the read action on sc
-         * <p>
-         * The convention is that both buffers are in write-mode before the call to
-         * doRead and after the call
-         *
-         * @throws java.io.IOException if the read fails
+         * Make this context the connection opened to link, not connected yet.
          */
-        private void doRead() throws IOException {
-            if (sc.read(bufferIn) == -1) {
-                logger.info("Connection closed by " + sc.getRemoteAddress());
-                closed = true;
+        private void linkTo(Link link) {
+            this.link = link;
+            role = Role.LINK_OUT;
+            attached = false; // only sent the frames forwarded, from the queue
+            loop.timeouts.cancel(idleTimer);
+        }
+
+        private void doConnect() throws IOException {
+            if (!sc.finishConnect()) {
+                return;
             }
-            processIn();
+            connected();
+        }
+
+        /**
+         * Send the handshake of the link, then the frames forwarded by this node.
+         */
+        private void connected() {
+            logger.info("Link to " + link.address);
+            loop.sessions.add(this);
+            var handshake = ByteBuffer.allocate(Integer.BYTES * 2).putInt(LINK_MARKER).putInt(nodeId).flip();
+            queue.offer(handshake);
+            account(handshake.remaining());
+            link.context = this;
+            link.connecting = false;
             updateInterestOps();
         }
 
         /**
-         * Performs the write action on sc
-         * <p>
-         * The convention is that both buffers are in write-mode before the call to
-         * doWrite and after the call
+         * Queue a message of a client of this node for the peer of this link. The frames
+         * queued during an iteration are sent together, by the gathering write of the flush.
          *
-         * @throws java.io.IOException if the write fails
+         * @param frame the read-only frame
          */
+        private void forward(ByteBuffer frame) {
+            forwarded.increment();
+            queueFrame(frame, null);
+        }
 
-        private void doWrite() throws IOException {
-            bufferOut.flip();
-            sc.write(bufferOut);
-            bufferOut.compact();
-            processOut();
-            updateInterestOps();
+        /**
+         * Completion of the filtering of a message by a worker, called on the thread of the loop
+         * in the order the messages were read. Reading resumes once every message read has
+         * been filtered.
+         *
+         * @param msg   the message to broadcast, or null to drop it
+         * @param error the exception thrown by the filter, or null
+         */
+        private void filtered(Message msg, Exception error) {
+            if (released) {
+                return;
+            }
+            if (error != null) {
+                logger.log(Level.WARNING, "Filter failed, closing connection with client", error);
+                silentlyClose();
+                return;
+            }
+            if (msg != null) {
+                broadcast(encode(msg), this);
+            }
+            if (lane.outstanding() == 0 && !dirty) {
+                updateInterestOps();
+            }
         }
 
-    }
+        private boolean filtering() {
+            return lane != null && lane.outstanding() != 0;
+        }
 
-    private static final Charset CHARSET = StandardCharsets.UTF_8;
-    private static final int BUFFER_SIZE = 1_024;
-    private static final Logger logger = Logger.getLogger(ServerChaton.class.getName());
+        /**
+         * Add an encoded message to the message queue of a detached context and mark it dirty.
+         * <p>
+         * The frame is shared by all the recipients and is never modified: only a view of it,
+         * with its own position, is queued. Nothing is written and the interestOps are left
+         * untouched until the loop flushes its dirty contexts at the end of the iteration.
+         * <p>
+         * If the queue would go over highWatermark, the overflow policy of the server is applied.
+         *
+         * @param frame  the read-only frame returned by encode
+         * @param sender the context the message comes from, or null
+         */
+        public void queueFrame(ByteBuffer frame, Context sender) {
+            if (released) {
+                return;
+            }
+            var size = frame.remaining();
+            if (queuedBytes + size > highWatermark && !overflow(size, sender)) {
+                return;
+            }
+            queue.offer(frame.duplicate());
+            account(size);
+            loop.markDirty(this);
+        }
 
-    private final ServerSocketChannel serverSocketChannel;
-    private final Selector selector;
+        /**
+         * Add delta to the number of bytes queued, and charge it to the memory budget.
+         *
+         * @param delta the number of bytes queued, negative when bytes are written or dropped
+         */
+        private void account(long delta) {
+            queuedBytes += delta;
+            budget.charge(delta);
+        }
 
-    public ServerChaton(int port) throws IOException {
-        serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
-        selector = Selector.open();
-    }
+        /**
+         * Drop the frames of the queue that have not started to be written, because the
+         * server is short of memory. The context goes back to the ring if nothing is left.
+         *
+         * @return the number of bytes dropped
+         */
+        private long shed() {
+            var head = queue.peek() != null && queue.peek().position() != 0 ? queue.poll() : null;
+            var dropped = queuedBytes - (head == null ? 0 : head.remaining());
+            queue.clear();
+            if (head != null) {
+                queue.add(head);
+            }
+            account(-dropped);
+            if (queue.isEmpty()) {
+                if (congested) {
+                    decongest();
+                }
+                if (role == Role.CLIENT && !compressed && delivered == null) {
+                    attach();
+                }
+                updateInterestOps();
+            }
+            return dropped;
+        }
 
-    public void launch() throws IOException {
-        serverSocketChannel.configureBlocking(false);
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-        while (!Thread.interrupted()) {
-            Helpers.printKeys(selector); // for debug
-            System.out.println("Starting select");
+        /**
+         * Try to write the frames published or queued during this iteration, then updateInterestOps.
+         * Called once per iteration by the loop for each context that may have something to send.
+         */
+        private void flush() {
+            if (released) {
+                return;
+            }
             try {
-                selector.select(this::treatKey);
-            } catch (UncheckedIOException tunneled) {
-                throw tunneled.getCause();
+                if (hasPending()) {
+                    doWrite();
+                } else {
+                    updateInterestOps();
+                }
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Connection closed with client due to IOException");
+                silentlyClose();
             }
-            System.out.println("Select finished");
         }
-    }
 
-    private void treatKey(SelectionKey key) {
-        Helpers.printSelectedKey(key); // for debug
-        try {
-            if (key.isValid() && key.isAcceptable()) {
-                doAccept();
+        private boolean hasPending() {
+            return replayed != replayEnd || (attached ? cursor != loop.ring.head() : !queue.isEmpty());
+        }
+
+        /**
+         * Stop reading from the ring because the cursor is too far behind: the frames not sent yet
+         * are moved to the queue, which is bounded by highWatermark and subject to the overflow
+         * policy. The context goes back to the ring once the queue is empty.
+         */
+        private void detach() {
+            detaches.increment();
+            leaveRing();
+        }
+
+        private void leaveRing() {
+            attached = false;
+            loop.detached.add(this);
+            var ring = loop.ring;
+            for (var sequence = cursor; sequence != ring.head(); sequence++) {
+                var frame = ring.get(sequence);
+                queueFrame(sequence == cursor ? frame.duplicate().position(offset) : frame, null);
             }
-        } catch (IOException ioe) {
-            // lambda call in select requires to tunnel IOException
-            throw new UncheckedIOException(ioe);
         }
-        try {
-            if (key.isValid() && key.isWritable()) {
-                ((Context) key.attachment()).doWrite();
+
+        /**
+         * Send the log from offset from to offset to to this new client, before any other frame.
+         * The bytes are transferred directly from the files of the log to the socket, as the
+         * socket takes them.
+         *
+         * @param from the offset of the first frame to replay
+         * @param to   the offset of the end of the last frame sent by the loop
+         */
+        private void replayLog(long from, long to) {
+            replayed = from;
+            replayEnd = to;
+            loop.markDirty(this);
+        }
+
+        /**
+         * Send the history of the loop to this new client, with one gathering write. What the
+         * socket does not take is copied to the queue, and the context is detached so that the
+         * frames broadcast afterwards are queued behind it.
+         *
+         * @param views the views of the history, valid only during this call
+         */
+        private void replay(ByteBuffer[] views) {
+            try {
+                var written = sc.write(views);
+                Trace.record(Trace.Event.WRITE, sc, written);
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Connection closed with client due to IOException");
+                silentlyClose();
+                return;
+            }
+            for (var view : views) {
+                if (view.hasRemaining()) {
+                    var copy = ByteBuffer.allocate(view.remaining()).put(view).flip();
+                    queue.offer(copy);
+                    account(copy.remaining());
+                }
             }
-            if (key.isValid() && key.isReadable()) {
-                ((Context) key.attachment()).doRead();
+            if (!queue.isEmpty()) {
+                attached = false;
+                loop.detached.add(this);
+                loop.markDirty(this);
             }
-        } catch (IOException e) {
-            logger.log(Level.INFO, "Connection closed with client due to IOException");
-            silentlyClose(key);
         }
-    }
 
-    private void doAccept() throws IOException {
-        var client = serverSocketChannel.accept();
-        if (client == null) {
-            logger.warning("accept() returned null");
-            return;
+        private void attach() {
+            attached = true;
+            cursor = loop.ring.head();
+            offset = 0;
+            loop.detached.remove(this);
         }
-        client.configureBlocking(false);
-        var skey = client.register(selector, SelectionKey.OP_READ);
-        skey.attach(new Context(skey));
-    }
 
-    private void silentlyClose(SelectionKey key) {
-        Channel sc = key.channel();
-        try {
-            sc.close();
-        } catch (IOException e) {
-            // ignore exception
+        /**
+         * @return true if nothing of this context is pending in the lists of its loop or in the
+         * worker pool, so that it can be handed off to another loop
+         */
+        private boolean quiescent() {
+            return !released && !closed && !paused && !backlogged && !dirty && !filtering() && replayed == replayEnd;
         }
-    }
 
-    /**
-     * Add a message to all connected clients queue
-     *
-     * @param msg the message to add
-     */
-    private void broadcast(Message msg) {
-        selector.keys().forEach(key -> {
-            if (key.channel() == serverSocketChannel) return;
-            var ctx = (Context) key.attachment();
-            ctx.queueMessage(msg);
-        });
-    }
+        /**
+         * Leave the loop before being adopted by another one: the frames of the ring not sent yet
+         * are moved to the queue, the idle timer is cancelled and the key is cancelled.
+         * Must be called from the thread of the loop, on a quiescent context.
+         */
+        private void leave() {
+            if (attached) {
+                var ring = loop.ring;
+                for (var sequence = cursor; sequence != ring.head(); sequence++) {
+                    var frame = ring.get(sequence).duplicate();
+                    if (sequence == cursor) {
+                        frame.position(offset);
+                    }
+                    queue.offer(frame);
+                    account(frame.remaining());
+                }
+                attached = false;
+            } else {
+                loop.detached.remove(this);
+            }
+            loop.sessions.remove(this);
+            loop.timeouts.cancel(idleTimer);
+            key.cancel();
+        }
 
-    public static void main(String[] args) throws NumberFormatException, IOException {
-        if (args.length != 1) {
-            usage();
-            return;
+        /**
+         * Rebind the context to the loop adopting it. Must be called from the thread of target.
+         *
+         * @param target the new loop of the context
+         * @param key    the key of the channel on the selector of target
+         */
+        private void moveTo(EventLoop target, SelectionKey key) {
+            loop = target;
+            this.key = key;
+            idleTimer = target.timeouts.newTimer(this::closeIdle);
+            lane = workers == null ? null : workers.newLane(target.mailbox, this::filtered);
+            touch();
+        }
+
+        /**
+         * Apply the overflow policy before queuing a frame of size bytes.
+         *
+         * @param size   the size of the frame to queue
+         * @param sender the context the frame comes from, or null
+         * @return true if the frame must still be queued
+         */
+        private boolean overflow(int size, Context sender) {
+            overflows.get(overflowPolicy).increment();
+            switch (overflowPolicy) {
+                case DISCONNECT:
+                    logger.info("Closing slow client with " + queuedBytes + " bytes queued");
+                    silentlyClose();
+                    return false;
+                case DROP_NEWEST:
+                    congest(sender);
+                    return false;
+                case DROP_OLDEST:
+                    congest(sender);
+                    // the head may be partially written, dropping it would corrupt the stream
+                    var head = queue.peek() != null && queue.peek().position() != 0 ? queue.poll() : null;
+                    while (!queue.isEmpty() && queuedBytes + size > highWatermark) {
+                        account(-queue.poll().remaining());
+                    }
+                    if (head != null) {
+                        queue.addFirst(head);
+                    }
+                    return true;
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        /**
+         * Mark this context as congested and, if enabled, pause the sender whose message
+         * could not fit in the queue.
+         *
+         * @param sender the context the frame comes from, or null
+         */
+        private void congest(Context sender) {
+            if (!congested) {
+                congested = true;
+                congestedClients.incrementAndGet();
+            }
+            if (pauseProducers && sender != null && sender != this) {
+                sender.loop.execute(sender::pause);
+            }
+        }
+
+        /**
+         * Leave the congested state. When no client is congested anymore, every paused sender
+         * is resumed.
+         */
+        private void decongest() {
+            congested = false;
+            if (congestedClients.decrementAndGet() == 0) {
+                for (var other : loops) {
+                    other.execute(other::resumeProducers);
+                }
+            }
+        }
+
+        /**
+         * Stop reading from this client until no client is congested.
+         * Must be called from the thread of the loop of this context.
+         */
+        private void pause() {
+            if (Thread.currentThread() != loop.thread) { // migrated since the task was posted
+                loop.execute(this::pause);
+                return;
+            }
+            if (released || paused || !key.isValid() || congestedClients.get() == 0) {
+                return; // a context between two loops is paused by the next frame it sends to a congested client
+            }
+            paused = true;
+            pauses.increment();
+            loop.paused.add(this);
+            updateInterestOps();
+        }
+
+        /**
+         * Process the frames left in bufferIn by the previous iteration.
+         */
+        private void serve() {
+            if (released) {
+                return;
+            }
+            backlogged = false;
+            processIn();
+            if (!dirty) {
+                updateInterestOps();
+            }
+        }
+
+        private void resume() {
+            paused = false;
+            updateInterestOps();
+        }
+
+        /**
+         * Update the interestOps of the key looking only at values of the boolean
+         * closed, of bufferIn and of the message queue.
+         * <p>
+         * The convention is that bufferIn is in write-mode before the call to
+         * updateInterestOps and after the call. Also it is assumed that process has
+         * been be called just before updateInterestOps.
+         */
+        private void updateInterestOps() {
+            if (released) {
+                return;
+            }
+            int interestOps = 0;
+            if (!closed && !paused && !backlogged && !filtering() && in.hasRemaining()) {
+                interestOps |= SelectionKey.OP_READ;
+            }
+            if (hasPending()) {
+                interestOps |= SelectionKey.OP_WRITE;
+            }
+
+            if (interestOps == 0 && !paused && !backlogged && !filtering()) {
+                silentlyClose();
+                return;
+            }
+            key.interestOps(interestOps);
+        }
+
+        /**
+         * Close sc and give back bufferIn to the pool. Nothing must be done with the
+         * context afterwards.
+         */
+        private void silentlyClose() {
+            try {
+                sc.close();
+            } catch (IOException e) {
+                // ignore exception
+            }
+            if (!released) {
+                released = true;
+                Trace.record(Trace.Event.CLOSE, sc, 0);
+                loop.sessions.remove(this);
+                if (compressed) {
+                    stopCompressing();
+                } else if (!attached) {
+                    loop.detached.remove(this);
+                }
+                loop.timeouts.cancel(idleTimer);
+                if (lane != null) {
+                    lane.discard();
+                }
+                queue.clear();
+                account(-queuedBytes);
+                if (congested) {
+                    decongest();
+                }
+                in.discard();
+                reader = null;
+                while (roomCount > 0) {
+                    removeMembership(roomCount - 1);
+                }
+                if (link != null) { // the acceptor connects again
+                    link.context = null;
+                    link.connecting = false;
+                }
+            }
+        }
+
+        /**
+         * Performs the read action on sc, reading at most readBudget bytes
+         * <p>
+         * The convention is that bufferIn is in write-mode before the call to
+         * doRead and after the call
+         *
+         * @throws java.io.IOException if the read fails
+         */
+        private void doRead() throws IOException {
+            var bufferIn = in.acquire();
+            var limit = bufferIn.limit();
+            bufferIn.limit(Math.min(limit, bufferIn.position() + readBudget));
+            int read;
+            try {
+                read = sc.read(bufferIn);
+            } finally {
+                bufferIn.limit(limit);
+            }
+            Trace.record(Trace.Event.READ, sc, read);
+            if (read == -1) {
+                logger.info("Connection closed by " + sc.getRemoteAddress());
+                closed = true;
+            } else {
+                bytesRead += read;
+            }
+            touch();
+            processIn();
+            if (!dirty) { // otherwise the flush at the end of the iteration updates them
+                updateInterestOps();
+            }
+        }
+
+        /**
+         * Performs the write action on sc
+         * <p>
+         * The frames are written directly, from the ring or from the queue, with a single
+         * gathering write and without being copied in an intermediate buffer. At most
+         * MAX_WRITE_FRAMES frames and MAX_WRITE_BYTES bytes are given to the channel for one call.
+         *
+         * @throws java.io.IOException if the write fails
+         */
+        private void doWrite() throws IOException {
+            long written;
+            if (replayed != replayEnd) {
+                written = log.transferTo(replayed, replayEnd, sc);
+                replayed += written;
+            } else {
+                written = attached ? writeFromRing() : writeFromQueue();
+            }
+            Trace.record(Trace.Event.WRITE, sc, written);
+            touch();
+            if (!attached) {
+                if (congested && queuedBytes <= lowWatermark) {
+                    decongest();
+                }
+                if (queue.isEmpty() && role == Role.CLIENT && !compressed && delivered == null) {
+                    attach();
+                }
+            }
+            updateInterestOps();
+        }
+
+        private long writeFromRing() throws IOException {
+            var ring = loop.ring;
+            var frames = loop.frames;
+            var first = cursor;
+            var count = 0;
+            var bytes = 0;
+            try {
+                for (var sequence = first; sequence != ring.head() && count != frames.length && bytes != MAX_WRITE_BYTES; sequence++) {
+                    var start = sequence == first ? offset : 0;
+                    var end = Math.min(ring.size(sequence), start + MAX_WRITE_BYTES - bytes);
+                    frames[count++] = ring.get(sequence).limit(end).position(start);
+                    bytes += end - start;
+                }
+                var written = sc.write(frames, 0, count);
+                var position = ring.position(first) + offset + written;
+                while (cursor != ring.head() && ring.position(cursor + 1) <= position) {
+                    cursor++;
+                }
+                offset = (int) (position - ring.position(cursor));
+                return written;
+            } finally {
+                // the frames are shared by all the cursors
+                for (var i = 0; i < count; i++) {
+                    frames[i].position(0).limit(ring.size(first + i));
+                    frames[i] = null;
+                }
+            }
+        }
+
+        private long writeFromQueue() throws IOException {
+            var frames = loop.frames;
+            var count = 0;
+            var bytes = 0;
+            ByteBuffer cut = null;
+            var cutLimit = 0;
+            for (var frame : queue) {
+                if (count == frames.length || bytes == MAX_WRITE_BYTES) {
+                    break;
+                }
+                if (frame.remaining() > MAX_WRITE_BYTES - bytes) {
+                    cut = frame;
+                    cutLimit = frame.limit();
+                    frame.limit(frame.position() + MAX_WRITE_BYTES - bytes);
+                }
+                frames[count++] = frame;
+                bytes += frame.remaining();
+            }
+            long written;
+            try {
+                written = sc.write(frames, 0, count);
+                account(-written);
+            } finally {
+                if (cut != null) {
+                    cut.limit(cutLimit);
+                }
+                Arrays.fill(frames, 0, count, null);
+            }
+            while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+                queue.poll();
+            }
+            return written;
+        }
+
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final TaskQueue mailbox;
+        private final ByteBuffer[] frames = new ByteBuffer[MAX_WRITE_FRAMES]; // scratch array for gathering writes
+        private final ArrayList<Context> paused = new ArrayList<>();
+        private final ArrayList<Context> ready = new ArrayList<>(); // contexts that spent their frame budget
+        private final ArrayList<Context> dirty = new ArrayList<>();
+        private final ArrayList<Context> detached = new ArrayList<>();
+        private final ArrayList<Context> compressing = new ArrayList<>(); // sent the compressed frames
+        private FrameCompressor compressor; // created by the first compression on this loop
+        private BroadcastRing ring; // created by loop, once highWatermark is known
+        private HistoryRing history; // null when new clients are not sent the last frames
+        private long logEnd = 0; // offset in the log of the end of the last frame published
+        private boolean logged = false; // frames logged by this loop during this iteration
+        private TimingWheel.Timer syncer; // only for the acceptor, when the log is synced periodically
+        private TimingWheel.Timer linker; // only for the acceptor, when the node has peers
+        private boolean published = false; // frames published in the ring during this iteration
+        private int drainedFrames = 0; // frames of the other loops sent to our clients during this iteration
+        private long drainedBytes = 0;
+        private final SessionRegistry<Context> sessions = new SessionRegistry<>();
+        private long now = clock(); // refreshed at most once per select, saves a call per read or write
+        private boolean nowStale = false;
+        private final TimingWheel timeouts = new TimingWheel(TIMEOUT_TICK, TIMEOUT_SLOTS, now);
+        private Thread thread;
+        private final int index; // in loops, -1 for an acceptor without clients
+        private long broadcasts = 0; // sequence of the last frame broadcast from this loop
+        private long[] progress; // sequence of the last frame processed, per loop it was broadcast from
+        private final HashMap<Context, Adoption> adoptions = new HashMap<>(); // contexts about to be handed off to this loop
+        private final HashMap<String, Room> rooms = new HashMap<>(); // with at least one member on this loop
+        private final ArrayList<Handoff> handoffs = new ArrayList<>(); // contexts about to leave this loop
+        private volatile double load = 0; // sum of the loads of the contexts during the last period
+        private TimingWheel.Timer sampler;
+        private TimingWheel.Timer rebalancer; // only for the acceptor
+
+        private EventLoop(int index) throws IOException {
+            this.index = index;
+            selector = Selector.open();
+            mailbox = new TaskQueue(selector);
+        }
+
+        /**
+         * Run task on the thread of this loop. If the caller already is this loop's thread,
+         * the task is run immediately, otherwise it is posted in the mailbox, which wakes up
+         * the selector at most once per iteration.
+         *
+         * @param task the task to run
+         */
+        private void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+                return;
+            }
+            mailbox.post(task);
+        }
+
+        private long now() {
+            if (nowStale) {
+                now = clock();
+                nowStale = false;
+            }
+            return now;
+        }
+
+        /**
+         * Register a freshly accepted client on the selector of this loop.
+         * Must be called from the thread of this loop.
+         *
+         * @param client the accepted client
+         */
+        private void register(SocketChannel client) {
+            try {
+                var skey = client.register(selector, SelectionKey.OP_READ);
+                var context = new Context(this, skey);
+                skey.attach(context);
+                sessions.add(context);
+                Trace.record(Trace.Event.ACCEPT, client, 0);
+                if (log != null && logReplayBytes > 0) {
+                    if (logEnd != 0) {
+                        context.replayLog(log.segmentStart(Math.max(0, logEnd - logReplayBytes)), logEnd);
+                    }
+                } else if (history != null && history.frames() != 0) {
+                    context.replay(history.views());
+                }
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Could not register client", e);
+                try {
+                    client.close();
+                } catch (IOException e2) {
+                    // ignore exception
+                }
+            }
+        }
+
+        /**
+         * Send an encoded message to all the clients handled by this loop: it is published once
+         * in the ring and only queued for the detached clients and, compressed, for the clients
+         * that asked for compression.
+         * Must be called from the thread of this loop.
+         *
+         * @param frame      the read-only frame to add
+         * @param compressed the frame compressed, or null if no client asked for compression when it was broadcast
+         * @param sender     the context the message comes from
+         * @param origin   the index of the loop the frame was broadcast from
+         * @param sequence the sequence of the broadcast among those of origin
+         * @param logEnd   the offset in the log of the end of the frame, 0 if the frames are not logged
+         */
+        private void broadcastLocal(ByteBuffer frame, ByteBuffer compressed, Context sender, int origin, long sequence, long logEnd) {
+            progress[origin] = sequence;
+            this.logEnd = logEnd;
+            drainedFrames++;
+            drainedBytes += frame.remaining();
+            if (history != null) {
+                history.add(frame);
+            }
+            publish(frame.duplicate()); // the positions of the view are moved by the writes of this loop only
+            for (var i = detached.size() - 1; i >= 0; i--) {
+                var context = detached.get(i);
+                if (context.delivered == null) {
+                    context.queueFrame(frame, sender);
+                    continue;
+                }
+                if (sequence > context.delivered[origin]) { // not sent yet by the loop it comes from
+                    context.queueFrame(frame, sender);
+                }
+                if (caughtUp(context.delivered)) {
+                    context.delivered = null;
+                }
+            }
+            for (var i = compressing.size() - 1; i >= 0; i--) {
+                compressing.get(i).queueFrame(compressed == null ? frame : compressed, sender);
+            }
+            if (!adoptions.isEmpty()) {
+                var broadcast = new Frame(frame, origin, sequence);
+                for (var adoption : adoptions.values()) {
+                    adoption.inbox.add(broadcast);
+                }
+            }
+        }
+
+        /**
+         * Publish a frame in the ring. If it is full, the clients whose cursor is too far behind
+         * are detached, and the frames before the slowest remaining cursor are reclaimed.
+         *
+         * @param frame a view of the frame, only used by this loop
+         */
+        private void publish(ByteBuffer frame) {
+            if (!ring.offer(frame)) {
+                var keep = ring.keepFrom(frame.remaining());
+                var slowest = ring.head();
+                for (var i = sessions.size() - 1; i >= 0; i--) { // detach may close and remove the context
+                    var context = sessions.get(i);
+                    if (!context.attached) {
+                        continue;
+                    }
+                    if (context.cursor < keep) {
+                        context.detach();
+                    } else {
+                        slowest = Math.min(slowest, context.cursor);
+                    }
+                }
+                reclaim(slowest);
+                if (!ring.offer(frame)) {
+                    throw new AssertionError();
+                }
+            }
+            budget.charge(frame.remaining()); // the frame is charged by the ring of each loop
+            published = true;
+        }
+
+        /**
+         * Send a frame to the members of a room handled by this loop, in O(members).
+         * Must be called from the thread of this loop.
+         *
+         * @param name   the name of the room
+         * @param frame  the read-only frame
+         * @param sender the context the message comes from
+         */
+        private void publishLocal(String name, ByteBuffer frame, Context sender) {
+            var room = rooms.get(name);
+            if (room == null) {
+                return;
+            }
+            drainedFrames++;
+            drainedBytes += frame.remaining();
+            for (var i = room.size - 1; i >= 0; i--) { // a member may be closed and removed
+                room.members[i].queueRoomFrame(frame, sender);
+            }
+        }
+
+        /**
+         * Tell whether the loop must stop running the tasks of its mailbox for this iteration.
+         * The frames of the other loops are sent by the flush at the end of the iteration, at
+         * most MAX_WRITE_FRAMES frames and MAX_WRITE_BYTES bytes per client: taking more of
+         * them in one iteration would fill the queues of fast clients up to highWatermark
+         * before anything is written. The remaining tasks wait for the next iteration, which
+         * does not block in select.
+         *
+         * @return true once half of what a client can be sent in an iteration has been taken
+         */
+        private boolean drained() {
+            return drainedFrames >= MAX_WRITE_FRAMES / 2 || drainedBytes >= Math.min(MAX_WRITE_BYTES, highWatermark) / 2;
+        }
+
+        private void markDirty(Context context) {
+            if (!context.dirty) {
+                context.dirty = true;
+                dirty.add(context);
+            }
+        }
+
+        /**
+         * Forget the frames of the ring before sequence, and credit them to the memory budget.
+         *
+         * @param sequence the sequence of the slowest cursor
+         */
+        private void reclaim(long sequence) {
+            budget.credit(ring.position(sequence) - ring.position(ring.tail()));
+            ring.reclaim(sequence);
+        }
+
+        /**
+         * Flush every context that got frames during this iteration: whatever the number
+         * of messages broadcast, each connection gets at most one write and one update of
+         * its interestOps per iteration. The frames sent to every attached context are
+         * then reclaimed, so that the ring only holds memory for the clients behind.
+         */
+        private void flush() {
+            if (published) {
+                published = false;
+                for (var i = sessions.size() - 1; i >= 0; i--) {
+                    var context = sessions.get(i);
+                    if (context.attached && context.hasPending()) {
+                        context.flush();
+                    }
+                }
+                var slowest = ring.head();
+                for (var i = 0; i < sessions.size(); i++) {
+                    var context = sessions.get(i);
+                    if (context.attached) {
+                        slowest = Math.min(slowest, context.cursor);
+                    }
+                }
+                reclaim(slowest);
+            }
+            for (var context : dirty) {
+                context.dirty = false;
+                context.flush();
+            }
+            dirty.clear();
+        }
+
+        /**
+         * Give a new frame budget to the first count contexts of the ready list, the ones
+         * queued by the previous iteration. Those still backlogged go back at the end.
+         *
+         * @param count the number of contexts to serve
+         */
+        private void serveReady(int count) {
+            for (var i = 0; i < count; i++) {
+                ready.get(i).serve();
+            }
+            ready.subList(0, count).clear();
+        }
+
+        /**
+         * Compress a frame for the clients of every loop that asked for compression, measuring
+         * the CPU time spent. Must be called from the thread of this loop.
+         *
+         * @param frame the read-only frame to compress
+         * @return the read-only compressed frame, or frame if compression does not make it smaller
+         */
+        private ByteBuffer compress(ByteBuffer frame) {
+            if (compressor == null) {
+                compressor = new FrameCompressor(compressionDictionary, compressionLevel);
+            }
+            var start = cpuTime();
+            var compressed = compressor.compress(frame);
+            compressionNanos.add(cpuTime() - start);
+            uncompressedBytes.add(frame.remaining());
+            compressedBytes.add(compressed.remaining());
+            return compressed;
+        }
+
+        /**
+         * Drop the queues of the detached and compressed contexts of this loop, the largest first,
+         * until the memory budget does not require shedding anymore.
+         */
+        private void shedLargestQueues() {
+            while (budget.mustShed()) {
+                Context largest = null;
+                for (var context : detached) {
+                    if (largest == null || context.queuedBytes > largest.queuedBytes) {
+                        largest = context;
+                    }
+                }
+                for (var context : compressing) {
+                    if (largest == null || context.queuedBytes > largest.queuedBytes) {
+                        largest = context;
+                    }
+                }
+                if (largest == null || largest.shed() == 0) {
+                    return;
+                }
+                sheds.increment();
+            }
+        }
+
+        /**
+         * Compute the load of each context during the last period, as a fraction of the
+         * thresholds of a hot connection, and the load of this loop.
+         */
+        private void sample() {
+            var seconds = rebalancePeriod / 1_000.0;
+            var total = 0.0;
+            for (var i = 0; i < sessions.size(); i++) {
+                var context = sessions.get(i);
+                context.load = context.framesRead / (hotFramesPerSecond * seconds)
+                        + context.bytesRead / (hotBytesPerSecond * seconds);
+                context.framesRead = 0;
+                context.bytesRead = 0;
+                total += context.load;
+            }
+            load = total;
+            timeouts.schedule(sampler, now() + rebalancePeriod);
+        }
+
+        /**
+         * Compare the loads of the loops and, if they are too far apart, ask the most loaded one
+         * to move a hot connection to the least loaded one. Runs on the acceptor.
+         */
+        private void rebalance() {
+            var hottest = loops[0];
+            var coolest = loops[0];
+            for (var loop : loops) {
+                if (loop.load > hottest.load) {
+                    hottest = loop;
+                }
+                if (loop.load < coolest.load) {
+                    coolest = loop;
+                }
+            }
+            if (hottest.load >= 1 && hottest.load > rebalanceImbalance * coolest.load) {
+                var source = hottest;
+                var target = coolest;
+                var gap = hottest.load - coolest.load;
+                source.execute(() -> source.migrateHottest(target, gap));
+            }
+            timeouts.schedule(rebalancer, now() + rebalancePeriod);
+        }
+
+        /**
+         * Start to move to target the hottest connection of this loop whose load is under gap,
+         * so that the move reduces the imbalance instead of swapping it.
+         *
+         * @param target the loop to move the connection to
+         * @param gap    the difference between the loads of this loop and of target
+         */
+        private void migrateHottest(EventLoop target, double gap) {
+            Context hottest = null;
+            for (var i = 0; i < sessions.size(); i++) {
+                var context = sessions.get(i);
+                if (context.role != Role.CLIENT || context.roomCount != 0 || context.compressed || context.migrating
+                        || context.delivered != null || context.load < 1 || context.load >= gap) {
+                    continue;
+                }
+                if (hottest == null || context.load > hottest.load) {
+                    hottest = context;
+                }
+            }
+            if (hottest == null) {
+                return;
+            }
+            hottest.migrating = true;
+            var context = hottest;
+            target.execute(() -> target.prepare(context, this));
+        }
+
+        /**
+         * First step of the adoption of a context, on the target loop: from now on the frames
+         * processed by this loop are kept for the context, and its loop is told which frames
+         * this loop had already processed.
+         *
+         * @param context the context to adopt
+         * @param source  the loop of the context
+         */
+        private void prepare(Context context, EventLoop source) {
+            var adoption = new Adoption(progress.clone());
+            adoptions.put(context, adoption);
+            source.execute(() -> source.handoffs.add(new Handoff(context, this, adoption.from)));
+        }
+
+        /**
+         * Second step, on the source loop at the end of an iteration: hand off the contexts
+         * that are quiescent once this loop has processed every frame their target had
+         * processed when it prepared the adoption. The contexts that closed or paused are
+         * not moved.
+         */
+        private void handOff() {
+            for (var i = handoffs.size() - 1; i >= 0; i--) {
+                var handoff = handoffs.get(i);
+                var context = handoff.context();
+                var target = handoff.target();
+                if (context.released || context.closed || context.paused) {
+                    handoffs.remove(i);
+                    context.migrating = false;
+                    target.execute(() -> target.adoptions.remove(context));
+                    continue;
+                }
+                if (!context.quiescent() || !caughtUp(handoff.from())) {
+                    continue;
+                }
+                handoffs.remove(i);
+                context.leave();
+                var upTo = progress.clone();
+                target.execute(() -> target.adopt(context, upTo));
+            }
+        }
+
+        private boolean caughtUp(long[] from) {
+            for (var origin = 0; origin < from.length; origin++) {
+                if (progress[origin] < from[origin]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Last step, on the target loop: register the channel on this selector and queue for the
+         * context the frames kept since prepare that its previous loop had not processed when it
+         * let it go. If the previous loop was ahead of this one, the frames it had processed
+         * and this loop has not are skipped when they arrive, the context staying off the ring
+         * until this loop has caught up. Every frame is thus sent once, and the frames broadcast
+         * from a given loop are sent in the order they were broadcast.
+         *
+         * @param context the context handed off
+         * @param upTo    the sequences of the last frames processed by the previous loop
+         */
+        private void adopt(Context context, long[] upTo) {
+            var adoption = adoptions.remove(context);
+            SelectionKey skey;
+            try {
+                skey = context.sc.register(selector, 0, context);
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Could not adopt client", e);
+                context.moveTo(this, context.key);
+                context.silentlyClose();
+                return;
+            }
+            context.moveTo(this, skey);
+            context.migrating = false;
+            sessions.add(context);
+            for (var broadcast : adoption.inbox) {
+                if (broadcast.sequence() > upTo[broadcast.origin()]) {
+                    var frame = broadcast.frame().duplicate();
+                    context.queue.offer(frame);
+                    context.account(frame.remaining());
+                }
+            }
+            if (!caughtUp(upTo)) {
+                context.delivered = upTo;
+            }
+            if (context.queue.isEmpty() && context.delivered == null) {
+                context.attach();
+            } else {
+                detached.add(context);
+            }
+            migrations.increment();
+            context.updateInterestOps();
+        }
+
+        private void resumeProducers() {
+            if (congestedClients.get() != 0) {
+                return;
+            }
+            paused.forEach(Context::resume);
+            paused.clear();
+        }
+
+        private void loop() throws IOException {
+            thread = Thread.currentThread();
+            ring = new BroadcastRing(RING_SIZE, Math.max(highWatermark, 1));
+            if (historyFrames > 0 && index != -1) {
+                history = new HistoryRing(historyFrames, historyBytes);
+            }
+            progress = new long[loops.length];
+            if (rebalancePeriod > 0 && loops.length > 1) {
+                if (index != -1) {
+                    sampler = timeouts.newTimer(this::sample);
+                    timeouts.schedule(sampler, now() + rebalancePeriod);
+                }
+                if (this == acceptor) {
+                    rebalancer = timeouts.newTimer(this::rebalance);
+                    timeouts.schedule(rebalancer, now() + rebalancePeriod);
+                }
+            }
+            if (this == acceptor && !links.isEmpty()) {
+                linker = timeouts.newTimer(this::connectPeers);
+                connectPeers();
+            }
+            if (this == acceptor && log != null && log.policy() == MessageLog.SyncPolicy.PERIODIC) {
+                syncer = timeouts.newTimer(this::syncLog);
+                timeouts.schedule(syncer, now() + logSyncPeriod);
+            }
+            while (!Thread.interrupted()) {
+                var backlog = ready.size();
+                try {
+                    // the ready list and the tasks left in the mailbox must not wait
+                    var timeout = backlog == 0 && !mailbox.hasTasks() ? timeout() : 0;
+                    nowStale = true; // the select may block
+                    Trace.record(Trace.Event.SELECT, timeout);
+                    var selected = timeout == 0
+                            ? selector.selectNow(this::treatKey)
+                            : selector.select(this::treatKey, Math.max(timeout, 0));
+                    Trace.record(Trace.Event.SELECTED, selected);
+                } catch (UncheckedIOException tunneled) {
+                    throw tunneled.getCause();
+                }
+                drainedFrames = 0;
+                drainedBytes = 0;
+                mailbox.runUntil(this::drained);
+                if (this == acceptor) {
+                    admit();
+                }
+                timeouts.expire(now());
+                serveReady(backlog);
+                if (logged) {
+                    logged = false;
+                    log.endBatch();
+                }
+                flush();
+                shedLargestQueues();
+                if (!handoffs.isEmpty()) {
+                    handOff();
+                }
+            }
+        }
+
+        /**
+         * Open a connection to link, on this loop. Must be called from the thread of this loop.
+         */
+        private void connect(Link link) {
+            SocketChannel sc = null;
+            try {
+                sc = SocketChannel.open();
+                sc.configureBlocking(false);
+                var skey = sc.register(selector, SelectionKey.OP_CONNECT);
+                var context = new Context(this, skey);
+                skey.attach(context);
+                context.linkTo(link);
+                if (sc.connect(link.address)) {
+                    context.connected();
+                }
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Could not connect to " + link.address, e);
+                if (sc != null) {
+                    try {
+                        sc.close();
+                    } catch (IOException e2) {
+                        // ignore exception
+                    }
+                }
+                link.connecting = false;
+            }
+        }
+
+        /**
+         * Connect to the peers whose link is down, then try again later. Runs on the acceptor.
+         */
+        private void connectPeers() {
+            for (var link : links) {
+                if (link.context == null && !link.connecting) {
+                    link.connecting = true;
+                    var loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    loop.execute(() -> loop.connect(link));
+                }
+            }
+            timeouts.schedule(linker, now() + LINK_RETRY);
+        }
+
+        private void syncLog() {
+            log.sync();
+            timeouts.schedule(syncer, now() + logSyncPeriod);
+        }
+
+        /**
+         * @return the time to wait in select, as returned by {@link TimingWheel#timeout(long)}
+         */
+        private long timeout() {
+            var timeout = timeouts.timeout(now());
+            if (this != acceptor) {
+                return timeout;
+            }
+            // while short of memory, the acceptor checks the budget again every tick
+            var admission = budget.acceptsConnections() ? limiter.timeout(now()) : TIMEOUT_TICK;
+            return timeout < 0 || (admission >= 0 && admission < timeout) ? admission : timeout;
+        }
+
+        /**
+         * Stop accepting while the server is short of memory, the clients then wait in the
+         * listen backlog. Otherwise admit the deferred clients for which the rate allows it.
+         */
+        private void admit() {
+            var accepting = budget.acceptsConnections();
+            if (accepting != ((serverKey.interestOps() & SelectionKey.OP_ACCEPT) != 0)) {
+                serverKey.interestOps(accepting ? SelectionKey.OP_ACCEPT : 0);
+            }
+            if (accepting) {
+                limiter.admitDeferred(now(), ServerChaton.this::dispatch);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Reactor stopped due to IOException", e);
+            } finally {
+                closeAll();
+            }
+        }
+
+        /**
+         * Close every channel registered on this loop, then its selector, and end the Deflater
+         * of its compressor. Called by the thread of the loop once it has stopped.
+         */
+        private void closeAll() {
+            if (compressor != null) {
+                compressor.close();
+                compressor = null;
+            }
+            for (var key : new ArrayList<>(selector.keys())) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore exception
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore exception
+            }
+        }
+
+        private void treatKey(SelectionKey key) {
+            Trace.recordKey(key);
+            try {
+                if (key.isValid() && key.isAcceptable()) {
+                    doAccept();
+                }
+            } catch (IOException ioe) {
+                // lambda call in select requires to tunnel IOException
+                throw new UncheckedIOException(ioe);
+            }
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    ((Context) key.attachment()).doConnect();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    ((Context) key.attachment()).doWrite();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    ((Context) key.attachment()).doRead();
+                }
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Connection closed with client due to IOException");
+                ((Context) key.attachment()).silentlyClose();
+            }
+        }
+    }
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int BUFFER_SIZE = 1_024;
+    private static final int MAX_WRITE_FRAMES = 64;
+    private static final int MAX_WRITE_BYTES = 64 * 1_024;
+    private static final int RING_SIZE = 4_096;
+    private static final int ACCEPT_BATCH = 16;
+    private static final int LINK_MARKER = -2; // first int of the handshake of a link, not a valid length
+    private static final int COMPRESS_MARKER = -6; // first int of a request for compression and of its answer
+    private static final Room[] NO_ROOMS = new Room[0];
+    private static final int[] NO_SLOTS = new int[0];
+    private static final long LINK_RETRY = 1_000;
+    private static final long TIMEOUT_TICK = 100;
+    private static final int TIMEOUT_SLOTS = 512;
+    private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE);
+    private static final Logger logger = Logger.getLogger(ServerChaton.class.getName());
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int port;
+    private final ServerSocketChannel serverSocketChannel;
+    private final EventLoop acceptor;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+    private AcceptLimiter limiter = new AcceptLimiter(ACCEPT_BATCH, 0, 1, clock());
+    private int acceptBacklog = 0;
+    private SelectionKey serverKey;
+    private MemoryBudget budget = MemoryBudget.unlimited();
+    private final LongAdder sheds = new LongAdder();
+    private final LongAdder refusals = new LongAdder();
+
+    private long lowWatermark = 256 * 1_024;
+    private long highWatermark = 1_024 * 1_024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private boolean pauseProducers = false;
+    private long idleTimeout = 0;
+    private int readBudget = BUFFER_SIZE;
+    private int frameBudget = 32;
+    private final AtomicInteger congestedClients = new AtomicInteger();
+    private final EnumMap<OverflowPolicy, LongAdder> overflows = new EnumMap<>(OverflowPolicy.class);
+    private final LongAdder pauses = new LongAdder();
+    private final LongAdder detaches = new LongAdder();
+    private final LongAdder migrations = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final AtomicInteger compressedClients = new AtomicInteger();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    private int nodeId = 0;
+    private List<Link> links = List.of();
+    private int historyFrames = 0;
+    private int historyBytes;
+    private MessageLog log; // null when the frames are not logged
+    private long logSyncPeriod;
+    private long logReplayBytes;
+    private long rebalancePeriod = 0;
+    private double hotFramesPerSecond;
+    private double hotBytesPerSecond;
+    private double rebalanceImbalance;
+    private byte[] compressionDictionary; // null when the clients can not ask for compression
+    private int compressionId;
+    private int compressionLevel;
+    private WorkerPool workers; // null when the messages are broadcast as they are read
+    private UnaryOperator<Message> filter;
+
+    public ServerChaton(int port) throws IOException {
+        this(port, 0);
+    }
+
+    /**
+     * Creates a server whose connections are spread over nbReactors event loops, each one
+     * running on its own thread with its own selector. The calling thread of launch only
+     * accepts new connections.
+     * <p>
+     * With nbReactors equal to 0, everything runs on the thread calling launch.
+     *
+     * @param port       the port to listen on
+     * @param nbReactors the number of reactor threads
+     * @throws IOException if the server channel or a selector cannot be opened
+     */
+    public ServerChaton(int port, int nbReactors) throws IOException {
+        if (nbReactors < 0) {
+            throw new IllegalArgumentException("nbReactors must not be negative");
+        }
+        this.port = port;
+        serverSocketChannel = ServerSocketChannel.open();
+        acceptor = new EventLoop(nbReactors == 0 ? 0 : -1);
+        for (var policy : OverflowPolicy.values()) {
+            overflows.put(policy, new LongAdder());
+        }
+        if (nbReactors == 0) {
+            loops = new EventLoop[]{acceptor};
+        } else {
+            loops = new EventLoop[nbReactors];
+            for (int i = 0; i < nbReactors; i++) {
+                loops[i] = new EventLoop(i);
+            }
+        }
+    }
+
+    /**
+     * Bound the number of bytes queued for each client. Must be called before launch.
+     * <p>
+     * When a frame would make the queue of a client go over highWatermark, policy is applied.
+     * With the drop policies the client is then considered congested until its queue goes back
+     * under lowWatermark. If pauseProducers is true, the server stops reading from the clients
+     * whose messages did not fit, as long as at least one client is congested.
+     *
+     * @param lowWatermark   the number of queued bytes under which a client is not congested anymore
+     * @param highWatermark  the maximum number of queued bytes per client
+     * @param policy         the policy applied when the queue of a client is full
+     * @param pauseProducers whether the senders of the messages that do not fit are paused
+     */
+    public void setBackpressure(long lowWatermark, long highWatermark, OverflowPolicy policy, boolean pauseProducers) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("invalid watermarks " + lowWatermark + "/" + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.overflowPolicy = Objects.requireNonNull(policy);
+        this.pauseProducers = pauseProducers;
+    }
+
+    /**
+     * Bound the work done for one client in one iteration of its loop, so that a client
+     * flooding the server with small messages does not delay the others. Must be called
+     * before launch.
+     * <p>
+     * At most readBudget bytes are read from a client per iteration, and at most frameBudget
+     * of its messages are broadcast. The messages left are broadcast at the next iteration,
+     * which does not block in select, and nothing more is read from the client meanwhile.
+     *
+     * @param readBudget  the maximum number of bytes read per client and per iteration
+     * @param frameBudget the maximum number of messages processed per client and per iteration
+     */
+    public void setBudget(int readBudget, int frameBudget) {
+        if (readBudget <= 0 || frameBudget <= 0) {
+            throw new IllegalArgumentException("budgets must be positive");
+        }
+        this.readBudget = readBudget;
+        this.frameBudget = frameBudget;
+    }
+
+    /**
+     * Hand every message read to a pool of worker threads before broadcasting it, so that
+     * a costly filter does not stall the other connections of the loop. Must be called
+     * before launch.
+     * <p>
+     * The messages of a client are broadcast in the order they were read, whatever the
+     * order in which the workers filter them, and nothing more is read from the client
+     * while some of its messages are being filtered.
+     *
+     * @param nbWorkers     the number of worker threads
+     * @param queueCapacity the maximum number of messages waiting for a worker
+     * @param filter        returns the message to broadcast, or null to drop it
+     */
+    public void setWorkers(int nbWorkers, int queueCapacity, UnaryOperator<Message> filter) {
+        this.workers = new WorkerPool(nbWorkers, queueCapacity);
+        this.filter = Objects.requireNonNull(filter);
+    }
+
+    /**
+     * @return the number of messages waiting for a worker, 0 without workers
+     */
+    public int workerQueueDepth() {
+        return workers == null ? 0 : workers.queueDepth();
+    }
+
+    /**
+     * Bound the rate at which new connections are admitted, so that a storm of reconnecting
+     * clients does not starve the established ones. Must be called before launch.
+     * <p>
+     * The acceptor accepts at most batch connections per wakeup. The connections beyond
+     * ratePerSecond, with bursts of at most burst connections, wait until they can be admitted;
+     * when burst connections are already waiting, the new ones are closed at once.
+     *
+     * @param batch         the maximum number of connections accepted per wakeup
+     * @param backlog       the length of the listen backlog, 0 for the default of the system
+     * @param ratePerSecond the number of connections admitted per second, 0 for no limit
+     * @param burst         the maximum number of connections admitted at once, or waiting
+     */
+    public void setAcceptLimits(int batch, int backlog, double ratePerSecond, int burst) {
+        if (backlog < 0) {
+            throw new IllegalArgumentException("backlog must not be negative");
+        }
+        limiter = new AcceptLimiter(batch, ratePerSecond, burst, clock());
+        acceptBacklog = backlog;
+    }
+
+    /**
+     * @return the number of connections admitted
+     */
+    public long acceptedCount() {
+        return limiter.acceptedCount();
+    }
+
+    /**
+     * @return the number of connections that waited before being admitted
+     */
+    public long deferredCount() {
+        return limiter.deferredCount();
+    }
+
+    /**
+     * @return the number of connections closed because too many were waiting to be admitted
+     */
+    public long rejectedCount() {
+        return limiter.rejectedCount();
+    }
+
+    /**
+     * Bound the memory held for the connections, in their buffers, their queues and the rings
+     * of the loops. Must be called before launch.
+     * <p>
+     * Over 70% of limit, no connection is accepted anymore. Over 85%, the loops drop the queues
+     * of their detached clients, the largest first. At limit, the new messages are dropped.
+     *
+     * @param limit the maximum number of bytes
+     */
+    public void setMemoryBudget(long limit) {
+        budget = new MemoryBudget(limit);
+    }
+
+    /**
+     * @return the memory budget of the server, to read its usage
+     */
+    public MemoryBudget memoryBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the number of queues dropped because the server was short of memory
+     */
+    public long shedCount() {
+        return sheds.sum();
+    }
+
+    /**
+     * @return the number of messages dropped because the server was out of memory
+     */
+    public long refusedCount() {
+        return refusals.sum();
+    }
+
+    /**
+     * Close the connections on which nothing has been read or written for idleTimeout milliseconds.
+     * Must be called before launch.
+     *
+     * @param idleTimeout the timeout in milliseconds, 0 to disable it
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("idleTimeout must not be negative");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Send to each new client the last frames broadcast, at most maxFrames frames and maxBytes
+     * bytes, before anything else. Must be called before launch.
+     * <p>
+     * Each loop keeps its own history, off-heap, so the memory used is maxBytes per loop. The
+     * history of a loop holds the frames it has sent to its clients, so a new client gets every
+     * frame exactly once: the ones before its arrival from the history, the others live.
+     * What the socket of the client does not take at once is queued like any frame, so maxBytes
+     * should stay under the high watermark.
+     *
+     * @param maxFrames the maximum number of frames replayed
+     * @param maxBytes  the maximum number of bytes replayed
+     */
+    public void setHistory(int maxFrames, int maxBytes) {
+        if (maxFrames <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxFrames and maxBytes must be positive");
+        }
+        this.historyFrames = maxFrames;
+        this.historyBytes = maxBytes;
+    }
+
+    /**
+     * Log every frame broadcast, so that they survive a restart, and send to each new client
+     * the end of the log before anything else. Must be called before launch.
+     * <p>
+     * The log is made of memory-mapped segments of segmentSize bytes in directory, of which the
+     * last maxSegments are kept, and appending a frame is a copy in memory. The log is synced by
+     * a thread of its own: with the MESSAGE policy after each frame, a frame being sent to the
+     * clients only once it is on disk, with BATCH at the end of each iteration of a loop that
+     * broadcast frames, and with PERIODIC every syncPeriod milliseconds. With BATCH and PERIODIC
+     * a frame may be sent before it is on disk. The frames are logged in the order they are sent by every
+     * loop, so a loop always knows how much of the log its clients have been sent.
+     * <p>
+     * A new client is sent the frames of the log from the start of the segment holding the
+     * last replayBytes bytes, or from the oldest segment kept, directly from the files to the socket with transferTo, then the
+     * frames broadcast after its arrival. With 0, nothing is replayed. The history set by
+     * setHistory is not replayed when the log is. A frame that can not be logged, because the
+     * disk is full or a filter made it bigger than a segment, is dropped and not sent.
+     *
+     * @param directory   the directory of the segments, created if needed
+     * @param segmentSize the size of a segment in bytes, enough for the largest frame read
+     * @param maxSegments the number of segments kept, at least 2
+     * @param policy      when the log is synced
+     * @param syncPeriod  the period of the PERIODIC policy in milliseconds, ignored otherwise
+     * @param replayBytes the number of bytes at the end of the log replayed to a new client
+     * @throws IOException if the log can not be opened
+     */
+    public void setLog(Path directory, int segmentSize, int maxSegments, MessageLog.SyncPolicy policy, long syncPeriod, long replayBytes) throws IOException {
+        if ((policy == MessageLog.SyncPolicy.PERIODIC && syncPeriod <= 0) || replayBytes < 0) {
+            throw new IllegalArgumentException("invalid log parameters");
+        }
+        if (segmentSize < MessageLog.HEADER + FrameReader.MAX_FRAME) {
+            throw new IllegalArgumentException("segmentSize must be at least " + (MessageLog.HEADER + FrameReader.MAX_FRAME));
+        }
+        this.log = new MessageLog(directory, segmentSize, policy, maxSegments);
+        this.logSyncPeriod = syncPeriod;
+        this.logReplayBytes = replayBytes;
+    }
+
+    /**
+     * Make this server a node of a federation: the messages of its clients are forwarded to
+     * every peer, and the messages forwarded by the peers are broadcast to its clients. Must be
+     * called before launch.
+     * <p>
+     * Each node opens a link to each of its peers, starting with a handshake giving its id:
+     * the int -2, which is not a valid length, then the id. A link is one-way, the node that
+     * opens it sends the messages of its own clients on it, as ordinary frames. The messages
+     * received from a peer are never forwarded again, so every node must list all the others
+     * and a message crosses at most one link. A link is refused, and its connection closed,
+     * unless it gives the id of a peer and comes from the address of this peer: a client that
+     * sends the handshake is disconnected. The frames forwarded during an iteration are sent
+     * in one gathering write per link.
+     * <p>
+     * The links that are down are opened again every second. The messages broadcast while
+     * the link to a peer is down are not sent to it.
+     *
+     * @param nodeId the id of this node, different for every node
+     * @param peers  the resolved addresses of the other nodes, by id
+     */
+    public void setFederation(int nodeId, Map<Integer, InetSocketAddress> peers) {
+        if (peers.containsKey(nodeId)) {
+            throw new IllegalArgumentException("node " + nodeId + " can not be its own peer");
+        }
+        if (peers.values().stream().anyMatch(InetSocketAddress::isUnresolved)) {
+            throw new IllegalArgumentException("the addresses of the peers must be resolved");
+        }
+        this.nodeId = nodeId;
+        this.links = peers.entrySet().stream().map(peer -> new Link(peer.getKey(), peer.getValue())).toList();
+    }
+
+    /**
+     * @return the number of peers to which the link is established
+     */
+    public int connectedPeerCount() {
+        return (int) links.stream().filter(link -> link.context != null).count();
+    }
+
+    /**
+     * @return the number of messages forwarded to the peers, once per peer
+     */
+    public long forwardedCount() {
+        return forwarded.sum();
+    }
+
+    /**
+     * @param policy an overflow policy
+     * @return the number of times policy has been applied
+     */
+    public long overflowCount(OverflowPolicy policy) {
+        return overflows.get(policy).sum();
+    }
+
+    /**
+     * @return the number of times a client has been paused because its messages congested other clients
+     */
+    public long pauseCount() {
+        return pauses.sum();
+    }
+
+    /**
+     * @return the number of times a client has been detached from the ring because it was too far behind
+     */
+    public long detachCount() {
+        return detaches.sum();
+    }
+
+    /**
+     * Periodically move hot connections from the most loaded loop to the least loaded one.
+     * Must be called before launch, and has no effect with less than two reactors.
+     * <p>
+     * Every period, each loop measures the frames and bytes read from each of its connections.
+     * The load of a connection is frames/hotFramesPerSecond + bytes/hotBytesPerSecond per second,
+     * so a connection is hot when its load is 1 or more, and the load of a loop is the sum of
+     * the loads of its connections. When the most loaded loop has a load over 1 and over
+     * imbalance times the load of the least loaded one, it hands off to it its hottest connection
+     * whose load is smaller than the difference. At most one connection moves per period.
+     * <p>
+     * During a handoff the connection keeps its order: the messages it sends are broadcast in
+     * the order they were read, and the frames it receives are neither lost nor duplicated.
+     *
+     * @param period             the period in milliseconds
+     * @param hotFramesPerSecond the number of messages per second read from a hot connection
+     * @param hotBytesPerSecond  the number of bytes per second read from a hot connection
+     * @param imbalance          the minimum ratio between the loads of the two loops to move a connection
+     */
+    public void setRebalancing(long period, double hotFramesPerSecond, double hotBytesPerSecond, double imbalance) {
+        if (period <= 0 || hotFramesPerSecond <= 0 || hotBytesPerSecond <= 0 || imbalance < 1) {
+            throw new IllegalArgumentException("invalid rebalancing parameters");
+        }
+        this.rebalancePeriod = period;
+        this.hotFramesPerSecond = hotFramesPerSecond;
+        this.hotBytesPerSecond = hotBytesPerSecond;
+        this.rebalanceImbalance = imbalance;
+    }
+
+    /**
+     * @return the number of connections moved from a loop to another one
+     */
+    public long migrationCount() {
+        return migrations.sum();
+    }
+
+    /**
+     * Let the clients ask to be sent the broadcast frames compressed with DEFLATE, starting
+     * from a dictionary shared with them. Must be called before launch.
+     * <p>
+     * A client asks for compression with the int -6, which is not a valid length, then the
+     * Adler-32 checksum of its dictionary, as given by FrameCompressor.dictionaryId. The server
+     * answers with -6 then the same id if it has the same dictionary, or 0 if it refuses. From
+     * then on, each frame broadcast is sent to the client as a frame of FrameCompressor, or as
+     * is when compression would not make it smaller. The frames of the rooms and the frames
+     * replayed on connection are never compressed.
+     * <p>
+     * Each frame is compressed once, by the loop of its sender, for all the compressed clients
+     * of every loop. It is compressed on its own with the dictionary rather than in a stream
+     * per client, so that every compressed client can be sent the same bytes; the dictionary
+     * should hold the words and usernames frequent in the chat. The compressed clients are
+     * sent their frames from their queue and never migrate to another loop.
+     *
+     * @param dictionary the shared dictionary, possibly empty
+     * @param level      the compression level of Deflater, from 0 to 9 or -1 for the default one
+     */
+    public void setCompression(byte[] dictionary, int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        this.compressionDictionary = dictionary.clone();
+        this.compressionId = FrameCompressor.dictionaryId(dictionary);
+        this.compressionLevel = level;
+    }
+
+    /**
+     * @return the number of clients currently sent compressed frames
+     */
+    public int compressedClientCount() {
+        return compressedClients.get();
+    }
+
+    /**
+     * @return the size of the compressed frames over the size of the frames compressed, 1 if
+     * no frame has been compressed
+     */
+    public double compressionRatio() {
+        var uncompressed = uncompressedBytes.sum();
+        return uncompressed == 0 ? 1 : (double) compressedBytes.sum() / uncompressed;
+    }
+
+    /**
+     * @return the CPU time spent compressing frames, in nanoseconds, or the elapsed time if
+     * the JVM does not measure the CPU time of threads
+     */
+    public long compressionCpuNanos() {
+        return compressionNanos.sum();
+    }
+
+    /**
+     * Run the server until the calling thread is interrupted, then close every connection and
+     * stop the reactors.
+     *
+     * @throws IOException if the server socket can not be bound or a loop fails
+     */
+    public void launch() throws IOException {
+        serverSocketChannel.bind(new InetSocketAddress(port), acceptBacklog);
+        serverSocketChannel.configureBlocking(false);
+        serverKey = serverSocketChannel.register(acceptor.selector, SelectionKey.OP_ACCEPT);
+        if (log != null) {
+            for (var loop : loops) { // the loops have sent the frames of previous runs
+                loop.logEnd = log.end();
+            }
+        }
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] == acceptor) {
+                continue;
+            }
+            var thread = new Thread(loops[i], "reactor-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+        try {
+            acceptor.loop();
+        } finally {
+            acceptor.closeAll();
+            threads.forEach(Thread::interrupt);
+            if (workers != null) {
+                workers.shutdown();
+            }
+            if (log != null) {
+                log.close();
+            }
+        }
+    }
+
+    private void doAccept() throws IOException {
+        limiter.acceptAll(serverSocketChannel, acceptor.now(), this::dispatch);
+    }
+
+    /**
+     * Hand an admitted client to the next loop, round-robin.
+     *
+     * @param client the admitted client
+     */
+    private void dispatch(SocketChannel client) {
+        try {
+            client.configureBlocking(false);
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Could not configure client", e);
+            try {
+                client.close();
+            } catch (IOException e2) {
+                // ignore exception
+            }
+            return;
+        }
+        var loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        loop.execute(() -> loop.register(client));
+    }
+
+    /**
+     * Add a frame to all connected clients queue. The frame is shared and each loop adds a
+     * view of it to the queues of its own clients.
+     *
+     * @param frame  the read-only frame, as returned by encode or by a FrameReader
+     * @param sender the context the message comes from
+     */
+    private void broadcast(ByteBuffer frame, Context sender) {
+        if (budget.refusesFrames()) {
+            refusals.increment();
+            return;
+        }
+        Trace.record(Trace.Event.MESSAGE, sender.sc, frame.remaining());
+        var origin = sender.loop.index; // called from the thread of the loop of sender
+        var sequence = ++sender.loop.broadcasts;
+        // compressed once for all the compressed clients, whatever their loop
+        var compressed = compressedClients.get() == 0 ? null : sender.loop.compress(frame);
+        if (log == null) {
+            for (var loop : loops) {
+                loop.execute(() -> loop.broadcastLocal(frame, compressed, sender, origin, sequence, 0));
+            }
+        } else {
+            // posted while holding the log, so that every loop gets the frames in the order of the log
+            synchronized (log) {
+                long logEnd;
+                try {
+                    logEnd = log.append(frame);
+                } catch (IOException | IllegalArgumentException e) {
+                    // a frame that is not logged is not sent either, the log is what the clients get
+                    logger.log(Level.WARNING, "Could not log frame, dropping it", e);
+                    return;
+                }
+                sender.loop.logged = true;
+                Runnable fanOut = () -> {
+                    for (var loop : loops) {
+                        loop.execute(() -> loop.broadcastLocal(frame, compressed, sender, origin, sequence, logEnd));
+                    }
+                };
+                if (log.policy() == MessageLog.SyncPolicy.MESSAGE) { // posted by the syncer once on disk
+                    log.whenSynced(logEnd, fanOut);
+                } else {
+                    fanOut.run();
+                }
+            }
+        }
+        if (sender.role == Role.CLIENT) { // the messages of the peers are not forwarded again
+            for (var link : links) {
+                var context = link.context;
+                if (context != null) {
+                    context.loop.execute(() -> context.forward(frame));
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a frame of a room to the members of the room, on every loop, and forward it to the
+     * peers if it comes from a client.
+     *
+     * @param room   the name of the room
+     * @param frame  the read-only MESSAGE frame, relayed as is
+     * @param sender the context the message comes from
+     */
+    private void publish(String room, ByteBuffer frame, Context sender) {
+        if (budget.refusesFrames()) {
+            refusals.increment();
+            return;
+        }
+        Trace.record(Trace.Event.MESSAGE, sender.sc, frame.remaining());
+        if (sender.role == Role.CLIENT) {
+            for (var link : links) {
+                var context = link.context;
+                if (context != null) {
+                    context.loop.execute(() -> context.forward(frame));
+                }
+            }
+        }
+        for (var loop : loops) {
+            loop.execute(() -> loop.publishLocal(room, frame, sender));
+        }
+    }
+
+    /**
+     * Encode a message in the wire format of the protocol.
+     *
+     * @param msg the message to encode
+     * @return a read-only buffer in read-mode containing the frame, starting at position 0
+     */
+    static ByteBuffer encode(Message msg) {
+        var username = CHARSET.encode(msg.username());
+        var text = CHARSET.encode(msg.text());
+        var buffer = ByteBuffer.allocate(username.remaining() + text.remaining() + Integer.BYTES * 2);
+        buffer.putInt(username.remaining())
+                .put(username)
+                .putInt(text.remaining())
+                .put(text)
+                .flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private static long clock() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    public static void main(String[] args) throws NumberFormatException, IOException {
+        if (args.length < 1 || args.length > 3) {
+            usage();
+            return;
+        }
+        var nbReactors = args.length >= 2 ? Integer.parseInt(args[1]) : 0;
+        var server = new ServerChaton(Integer.parseInt(args[0]), nbReactors);
+        if (args.length == 3) {
+            server.setIdleTimeout(Long.parseLong(args[2]));
         }
-        new ServerChaton(Integer.parseInt(args[0])).launch();
+        server.launch();
     }
 
     private static void usage() {
-        System.out.println("Usage : ServerSumBetter port");
+        System.out.println("Usage : ServerChaton port [nbReactors [idleTimeoutMillis]]");
     }
-}
\ No newline at end of file
+}